@@ -0,0 +1,68 @@
+package security.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import security.CryptoInputStream;
+import security.CryptoOutputStream;
+import security.Hash;
+import security.OneTimeKey;
+
+// One message through CryptoOutputStream and back through CryptoInputStream, in memory so only the crypto path is measured
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoStreamBenchmark {
+    @Param({ "64", "4096", "65536" })
+    public int length;
+
+    // Up to 255 uses the legacy one-byte length, above that the extended record format
+    @Param({ "8", "127", "16384" })
+    public int dataBytes;
+
+    private Hash hash;
+    private byte[] key;
+    private byte[] message;
+    private byte[] received;
+    private ByteArrayOutputStream wire;
+
+    @Setup
+    public void setup() {
+        this.hash = new Hash(this.dataBytes, 2, (byte) 0x5a, 7, this.dataBytes > 255 ? Hash.FORMAT_EXTENDED : Hash.FORMAT_LEGACY);
+        Random random = new Random(42);
+        this.key = OneTimeKey.newKey(random, this.hash.getPacketSize());
+        this.message = new byte[this.length];
+        random.nextBytes(this.message);
+        this.received = new byte[this.length];
+        this.wire = new ByteArrayOutputStream(this.hash.getPackedSize(this.length) + this.hash.getPacketSize());
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        this.wire.reset();
+        // Closing gives the stream buffers back to the pool, as SSLSocket.close() does
+        try (CryptoOutputStream out = new CryptoOutputStream(this.wire, this.key, this.hash)) {
+            out.write(this.message);
+        }
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(this.wire.toByteArray()), this.key, this.hash)) {
+            in.readNBytes(this.received, 0, this.length);
+        }
+        return this.received;
+    }
+}
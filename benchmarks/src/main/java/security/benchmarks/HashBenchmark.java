@@ -0,0 +1,70 @@
+package security.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import security.Hash;
+import security.IntegrityCodec;
+
+// Packing and unpacking one 16 KB buffer, reported per operation; divide into 16 KB for throughput
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    private static final int LENGTH = 16 * 1024;
+
+    // Up to 255 uses the legacy one-byte length, above that the extended record format
+    @Param({ "8", "32", "127", "16384" })
+    public int dataBytes;
+
+    @Param({ "1", "2", "4" })
+    public int checkBytes;
+
+    @Param({ "legacy", "crc32c", "adler32" })
+    public String integrity;
+
+    private Hash hash;
+    private byte[] data;
+    private byte[] packed;
+    private byte[] unpacked;
+
+    @Setup
+    public void setup() {
+        this.hash = new Hash(this.dataBytes, this.checkBytes, (byte) 0x5a, 7, this.dataBytes > 255 ? Hash.FORMAT_EXTENDED : Hash.FORMAT_LEGACY,
+                IntegrityCodec.forName(this.integrity, (byte) 0x5a, 7, this.checkBytes));
+        this.data = new byte[LENGTH];
+        new Random(42).nextBytes(this.data);
+        this.packed = new byte[this.hash.getPackedSize(LENGTH)];
+        this.hash.pack(this.data, 0, LENGTH, this.packed, 0);
+        this.unpacked = new byte[LENGTH];
+    }
+
+    @Benchmark
+    public int pack() {
+        return this.hash.pack(this.data, 0, LENGTH, this.packed, 0);
+    }
+
+    @Benchmark
+    public int unpack() throws Exception {
+        return this.hash.unpack(this.packed, 0, this.packed.length, this.unpacked, 0);
+    }
+
+    // The allocating byte[] -> byte[] form the original code used
+    @Benchmark
+    public byte[] packArray() {
+        return this.hash.pack(this.data);
+    }
+}
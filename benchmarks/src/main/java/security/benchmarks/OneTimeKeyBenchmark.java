@@ -0,0 +1,47 @@
+package security.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import security.OneTimeKey;
+
+// XOR of buffers from one packet to 64 KB, in place, against a key the size of a typical packet
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OneTimeKeyBenchmark {
+    @Param({ "16", "1024", "16384", "65536" })
+    public int length;
+
+    @Param({ "16", "136" })
+    public int keyLength;
+
+    private byte[] data;
+    private byte[] key;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        this.data = new byte[this.length];
+        random.nextBytes(this.data);
+        this.key = OneTimeKey.newKey(random, this.keyLength);
+    }
+
+    @Benchmark
+    public int xor() {
+        return OneTimeKey.xor(this.data, 0, this.length, this.key, 0);
+    }
+}
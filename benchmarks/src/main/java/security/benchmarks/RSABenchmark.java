@@ -0,0 +1,53 @@
+package security.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import security.OneTimeKey;
+import security.RSA;
+
+// RSA.cipher of a one-time-key sized block with each half of a fresh key pair; primeSize is half the modulus
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RSABenchmark {
+    @Param({ "256", "512", "1024" })
+    public int primeSize;
+
+    private RSA.PublicKey publicKey;
+    private RSA.PrivateKey privateKey;
+    private byte[] plain;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        RSA.KeyPair keyPair = RSA.generateKeys(this.primeSize, 50);
+        this.publicKey = keyPair.getPublicKey();
+        this.privateKey = keyPair.getPrivateKey();
+        this.plain = OneTimeKey.newKey(Math.min(32, this.primeSize / 8));
+        this.encrypted = RSA.cipher(this.plain, this.publicKey);
+    }
+
+    @Benchmark
+    public byte[] encryptPublic() throws Exception {
+        return RSA.cipher(this.plain, this.publicKey);
+    }
+
+    // The server's side of every full handshake
+    @Benchmark
+    public byte[] decryptPrivate() throws Exception {
+        return RSA.cipher(this.encrypted, this.privateKey);
+    }
+}
@@ -0,0 +1,129 @@
+package security;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class CryptoInputStreamTest {
+    // 100 data bytes in 104-byte packets: the ring holds 157 of them, 16328 bytes, so reads wrap at odd offsets
+    private static final Hash HASH = new Hash(100, 3, (byte) 0x7F, 31);
+
+    @Test
+    public void readsAcrossRingWrapAround() throws IOException {
+        byte[] key = OneTimeKey.newKey(HASH.getPacketSize());
+        byte[] data = random(10 * CryptoInputStream.RING_SIZE + 77, 3);
+        byte[] ciphertext = encrypt(data, key, 1000);
+
+        // Each read of the socket delivers a few bytes more or less than a packet, so fills stop mid-packet too
+        for (int chunk : new int[] { 1, 103, 105, 4096, 16328, 65536 }) {
+            try (CryptoInputStream in = new CryptoInputStream(new Trickle(ciphertext, chunk), key, HASH)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b = in.read();
+                out.write(b);
+                byte[] buffer = new byte[333];
+                int n;
+                while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                assertArrayEquals(data, out.toByteArray(), "chunk=" + chunk);
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void readNBytesAndSkipAcrossRingWrapAround() throws IOException {
+        byte[] key = OneTimeKey.newKey(HASH.getPacketSize());
+        byte[] data = random(3 * CryptoInputStream.RING_SIZE, 4);
+        byte[] ciphertext = encrypt(data, key, 4096);
+
+        try (CryptoInputStream in = new CryptoInputStream(new Trickle(ciphertext, 777), key, HASH)) {
+            int position = 0;
+            while (position < data.length) {
+                int n = Math.min(5000, data.length - position);
+                assertArrayEquals(Arrays.copyOfRange(data, position, position + n), in.readNBytes(n));
+                position += n;
+                long skipped = in.skip(1234);
+                position += (int) skipped;
+                if (skipped < 1234) {
+                    break;
+                }
+            }
+            assertEquals(data.length, position);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void endOfStreamWithinAPacketFails() throws IOException {
+        byte[] key = OneTimeKey.newKey(HASH.getPacketSize());
+        byte[] data = random(10 * HASH.getNumberOfDataBytes(), 5);
+        byte[] ciphertext = encrypt(data, key, data.length);
+        int whole = 4 * HASH.getPacketSize();
+        byte[] truncated = Arrays.copyOf(ciphertext, whole + 50);
+
+        try (CryptoInputStream in = new CryptoInputStream(new Trickle(truncated, 60), key, HASH)) {
+            // The complete packets come through before the torn one is noticed
+            assertArrayEquals(Arrays.copyOf(data, 4 * HASH.getNumberOfDataBytes()), in.readNBytes(4 * HASH.getNumberOfDataBytes()));
+            assertThrows(IOException.class, in::read);
+        }
+    }
+
+    @Test
+    public void endOfStreamAtAPacketBoundaryIsClean() throws IOException {
+        byte[] key = OneTimeKey.newKey(HASH.getPacketSize());
+        byte[] data = random(CryptoInputStream.RING_SIZE + 10, 6);
+        byte[] ciphertext = encrypt(data, key, 100);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(ciphertext), key, HASH)) {
+            assertArrayEquals(data, in.readAllBytes());
+            assertEquals(-1, in.read(new byte[10], 0, 10));
+        }
+    }
+
+    // data written in writes of up to chunk bytes, flushing after each so packets come out partly filled too
+    private static byte[] encrypt(byte[] data, byte[] key, int chunk) throws IOException {
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        try (CryptoOutputStream out = new CryptoOutputStream(ciphertext, key, HASH)) {
+            for (int off = 0; off < data.length; off += chunk) {
+                out.write(data, off, Math.min(chunk, data.length - off));
+                out.flush();
+            }
+        }
+        return ciphertext.toByteArray();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Hands out at most chunk bytes per read and reports nothing available, like a socket with data in flight
+    private static class Trickle extends FilterInputStream {
+        private final int chunk;
+
+        Trickle(byte[] data, int chunk) {
+            super(new ByteArrayInputStream(data));
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, this.chunk));
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+}
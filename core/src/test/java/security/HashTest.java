@@ -0,0 +1,140 @@
+package security;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class HashTest {
+    // Lengths around the packet boundaries of the data sizes used below
+    private static final int[] LENGTHS = { 0, 1, 2, 7, 126, 127, 128, 255, 256, 257, 1000, 4096, 70000 };
+
+    // The long-arithmetic checksum must give the same packets as the original BigInteger one, including the
+    // modulus (int) Math.pow(2, 8 * checkBytes) that saturates to Integer.MAX_VALUE from 4 check bytes upwards
+    @Test
+    public void legacyPacketsMatchBigIntegerBaseline() throws Exception {
+        Random random = new Random(1);
+        // The baseline read the length byte as signed, so its packets are only valid up to 127 data bytes
+        int[] dataSizes = { 1, 7, 16, 100, 127 };
+        byte[] patterns = { (byte) 0xFF, (byte) 0x5A, 0x01, 0 };
+        int[] ks = { 1, 3, 255, 16777215, Integer.MAX_VALUE, -1, -7919 };
+        for (int checkBytes = 1; checkBytes <= 6; checkBytes++) {
+            for (int dataBytes : dataSizes) {
+                for (byte pattern : patterns) {
+                    for (int k : ks) {
+                        byte[] data = new byte[random.nextInt(3 * dataBytes + 1)];
+                        random.nextBytes(data);
+                        String label = "dataBytes=" + dataBytes + " checkBytes=" + checkBytes + " pattern=" + pattern + " k=" + k;
+                        byte[] packed = Hash.pack(data, dataBytes, checkBytes, pattern, k);
+                        assertArrayEquals(baselinePack(data, dataBytes, checkBytes, pattern, k), packed, label);
+                        assertArrayEquals(data, Hash.unpack(packed, dataBytes, checkBytes, pattern, k), label);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void saturatedModulusReducesBelowIntegerMaxValue() {
+        // 0xFF masks to -1 after sign extension, so at k = 2^24 - 1 the sum comes to about -2^31, which the
+        // saturated modulus has to bring back into range
+        byte[] data = new byte[127];
+        Arrays.fill(data, (byte) 0xFF);
+        for (int checkBytes = 4; checkBytes <= 6; checkBytes++) {
+            assertArrayEquals(baselinePack(data, 127, checkBytes, (byte) 0xFF, 16777215),
+                    Hash.pack(data, 127, checkBytes, (byte) 0xFF, 16777215), "checkBytes=" + checkBytes);
+        }
+    }
+
+    @Test
+    public void extendedFormatRoundTrips() throws Exception {
+        Random random = new Random(2);
+        for (int dataBytes : new int[] { 1, 255, 256, 300, 4096, 0xFFFF }) {
+            Hash hash = new Hash(dataBytes, 2, (byte) 0x7F, 31, Hash.FORMAT_EXTENDED);
+            assertEquals(2 + dataBytes + 2, hash.getPacketSize());
+            for (int length : LENGTHS) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                String label = "dataBytes=" + dataBytes + " length=" + length;
+
+                byte[] packed = hash.pack(data);
+                assertEquals(hash.getPackedSize(length), packed.length, label);
+                // Every packet starts with its data size as two big-endian bytes
+                int remaining = length;
+                for (int base = 0; base < packed.length; base += hash.getPacketSize()) {
+                    int n = Math.min(remaining, dataBytes);
+                    assertEquals(n, (packed[base] & 0xFF) << 8 | packed[base + 1] & 0xFF, label);
+                    remaining -= n;
+                }
+                assertArrayEquals(data, hash.unpack(packed), label);
+
+                // The direct buffer path reads and writes the lengths itself rather than through the array code
+                ByteBuffer direct = ByteBuffer.allocateDirect(packed.length);
+                assertEquals(packed.length, hash.pack(data, 0, length, direct), label);
+                direct.flip();
+                ByteBuffer out = ByteBuffer.allocateDirect(length);
+                assertEquals(length, hash.unpack(direct, out), label);
+                byte[] unpacked = new byte[length];
+                out.flip().get(unpacked);
+                assertArrayEquals(data, unpacked, label);
+            }
+        }
+    }
+
+    @Test
+    public void extendedLengthAboveDataBytesIsRejected() {
+        Hash hash = new Hash(300, 2, (byte) 0x7F, 31, Hash.FORMAT_EXTENDED);
+        byte[] packed = hash.pack(new byte[10]);
+        packed[0] = 0x01;
+        packed[1] = 0x2D;
+        assertThrows(Exception.class, () -> hash.unpack(packed));
+    }
+
+    @Test
+    public void legacyFormatRejectsMoreThan255DataBytes() {
+        assertThrows(IllegalArgumentException.class, () -> new Hash(256, 2, (byte) 0x7F, 31));
+        new Hash(256, 2, (byte) 0x7F, 31, Hash.FORMAT_EXTENDED);
+    }
+
+    // Hash.pack as it was before the checksum moved to long arithmetic
+    private static byte[] baselinePack(byte[] data, int dataBytes, int checkBytes, byte pattern, int k) {
+        int length = data.length;
+        int packetSize = dataBytes + checkBytes + 1;
+        int numPackets = length % dataBytes == 0 ? length / dataBytes : length / dataBytes + 1;
+
+        byte[] packedData = new byte[numPackets * packetSize];
+        int dataIndex = 0;
+
+        for (int packetIndex = 0; packetIndex < numPackets; packetIndex++) {
+            byte dataSize = (byte) ((packetIndex + 1) * dataBytes > length ? length % dataBytes : dataBytes);
+            packedData[packetIndex * packetSize] = dataSize;
+
+            BigInteger checksum = BigInteger.ZERO;
+
+            for (int i = 0; i < dataSize; i++) {
+                byte b = data[dataIndex++];
+                checksum = checksum.add(BigInteger.valueOf((pattern & b) * k));
+                packedData[packetIndex * packetSize + i + 1] = b;
+            }
+
+            checksum = checksum.mod(BigInteger.valueOf((int) Math.pow(2.0, 8 * checkBytes)));
+            byte checksumSize = (byte) checksum.toByteArray().length;
+
+            for (int i = 0; i < checkBytes; i++) {
+                byte checksumByte;
+                if (checkBytes - i > checksumSize) {
+                    checksumByte = 0;
+                } else {
+                    checksumByte = checksum.toByteArray()[i - (checkBytes - checksumSize)];
+                }
+                packedData[packetIndex * packetSize + dataBytes + i + 1] = checksumByte;
+            }
+        }
+        return packedData;
+    }
+}
@@ -0,0 +1,170 @@
+package security;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Two multiplexers over a loopback SSLSocket pair; the server side echoes every stream it accepts
+public class SSLMultiplexerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final Hash HASH = new Hash(255, 2, (byte) 0x7F, 31);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "mux-test");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private SSLSocket clientSocket;
+    private SSLSocket serverSocket;
+
+    @BeforeEach
+    public void connect() throws IOException {
+        byte[] key = OneTimeKey.newKey(HASH.getPacketSize());
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            this.clientSocket = new SSLSocket(client, key, HASH);
+            this.serverSocket = new SSLSocket(listener.accept(), key, HASH);
+        }
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        this.executor.shutdownNow();
+        this.clientSocket.close();
+        this.serverSocket.close();
+    }
+
+    @Test
+    public void concurrentlyOpenedStreamsAllGetTheirEcho() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SSLMultiplexer server = echo();
+            SSLMultiplexer client = new SSLMultiplexer(this.clientSocket, true);
+            int streams = 64;
+            CountDownLatch opened = new CountDownLatch(streams);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                byte[] message = message(1 + 997 * i % 40000, i);
+                results.add(this.executor.submit(() -> {
+                    // Every stream is open before any writes, so which goes out first is down to scheduling
+                    SSLMultiplexer.Stream stream = client.open();
+                    opened.countDown();
+                    opened.await();
+                    assertArrayEquals(message, roundTrip(stream, message));
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            client.close();
+            server.close();
+        });
+    }
+
+    @Test
+    public void streamsMayFirstWriteOutOfOpenOrder() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SSLMultiplexer server = echo();
+            SSLMultiplexer client = new SSLMultiplexer(this.clientSocket, true);
+            SSLMultiplexer.Stream first = client.open();
+            SSLMultiplexer.Stream second = client.open();
+            byte[] one = message(5000, 1);
+            byte[] two = message(7000, 2);
+            assertArrayEquals(two, roundTrip(second, two));
+            assertArrayEquals(one, roundTrip(first, one));
+            // Ids follow the order of the first frames, not of open()
+            assertEquals(1, second.getId());
+            assertEquals(3, first.getId());
+            client.close();
+            server.close();
+        });
+    }
+
+    // A peer still sending on a stream the other side does not have is told to stop
+    @Test
+    public void framesForUnknownStreamsAreReset() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SSLMultiplexer server = new SSLMultiplexer(this.serverSocket, false);
+            // Raw frames from the client side: [type][id][length][data]; DATA is 0 and RESET is 3
+            DataOutputStream out = new DataOutputStream(this.clientSocket.getOutputStream());
+            DataInputStream in = new DataInputStream(this.clientSocket.getInputStream());
+            out.writeByte(0);
+            out.writeInt(3);
+            out.writeInt(1);
+            out.writeByte('x');
+            // Stream 1 comes after 3, so the server takes it for one of its closed streams
+            out.writeByte(0);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeByte('y');
+            out.flush();
+
+            SSLMultiplexer.Stream stream = server.accept();
+            assertEquals(3, stream.getId());
+            assertEquals('x', stream.getInputStream().read());
+            assertEquals(3, in.readByte());
+            assertEquals(1, in.readInt());
+            assertEquals(0, in.readInt());
+            server.close();
+        });
+    }
+
+    // Accept streams on the server socket and echo each one back until its end
+    private SSLMultiplexer echo() throws IOException {
+        SSLMultiplexer server = new SSLMultiplexer(this.serverSocket, false);
+        this.executor.execute(() -> {
+            try {
+                SSLMultiplexer.Stream stream;
+                while ((stream = server.accept()) != null) {
+                    SSLMultiplexer.Stream accepted = stream;
+                    this.executor.execute(() -> {
+                        try (accepted) {
+                            accepted.getOutputStream().write(accepted.getInputStream().readAllBytes());
+                        } catch (IOException e) {
+                            // The client finds out
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        });
+        return server;
+    }
+
+    private static byte[] roundTrip(SSLMultiplexer.Stream stream, byte[] message) throws IOException {
+        try (stream) {
+            OutputStream out = stream.getOutputStream();
+            out.write(message);
+            stream.shutdownOutput();
+            InputStream in = stream.getInputStream();
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] message(int length, long seed) {
+        byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+    }
+}
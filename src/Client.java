@@ -1,51 +1,45 @@
-import java.io.FileInputStream;
 import java.io.InputStream;
-import java.util.Properties;
-import security.Hash;
-import security.OneTimeKey;
-import security.RSA;
+import security.ClientSession;
+import security.SSLConnectionPool;
 import security.SSLSocket;
 
 public class Client {
 
     private SSLSocket sslSocket;
+    private SSLConnectionPool pool;
 
     public Client(String host, int port, String name) throws Exception {
-        // Load properties from file
-        Properties properties = new Properties();
-        try (FileInputStream fileInputStream = new FileInputStream(name + ".txt")) {
-            properties.load(fileInputStream);
-        }
-
-        // Retrieve necessary properties
-        String company = properties.getProperty("company");
-        RSA.PublicKey serverPublicKey = new RSA.PublicKey(properties.getProperty("server.public_key").getBytes());
-        RSA.PrivateKey privateKey = new RSA.PrivateKey(properties.getProperty("private_key").getBytes());
-        byte pattern = (byte) Integer.parseInt(properties.getProperty("pattern"));
-        int ndatabytes = Integer.parseInt(properties.getProperty("ndatabytes"));
-        int ncheckbytes = Integer.parseInt(properties.getProperty("ncheckbytes"));
-        int k = Integer.parseInt(properties.getProperty("k"));
-
-        // Create Hash object
-        Hash hash = new Hash(ndatabytes, ncheckbytes, pattern, k);
-
-        // Encrypt company name with private key
-        byte[] encryptedCompanyName = RSA.cipher(company.getBytes(), privateKey);
-
-        // Generate one-time key
-        byte[] oneTimeKey = OneTimeKey.newKey(ndatabytes + ncheckbytes + 1);
-
-        // Encrypt one-time key with server's public key
-        byte[] encryptedOneTimeKey = RSA.cipher(oneTimeKey, serverPublicKey);
+        this(ClientSession.load(name), host, port);
+    }
 
-        // Encrypt name with server's public key
-        byte[] encryptedName = RSA.cipher(name.getBytes(), serverPublicKey);
+    // Connect through a ClientSession, which keeps the encrypted name and company tokens between connections
+    public Client(ClientSession session, String host, int port) throws Exception {
+        sslSocket = session.connect(host, port);
+    }
 
-        // Initialize SSLSocket
-        sslSocket = new SSLSocket(host, port, encryptedName, encryptedCompanyName, encryptedOneTimeKey, oneTimeKey, hash);
+    // Lease an authenticated connection from pool, which execute() gives back instead of closing
+    public Client(SSLConnectionPool pool, ClientSession session, String host, int port) throws Exception {
+        this.pool = pool;
+        sslSocket = pool.lease(session, host, port);
     }
 
     public void execute() throws Exception {
+        try {
+            converse();
+        } catch (Exception e) {
+            if (pool != null) {
+                pool.invalidate(sslSocket);
+            }
+            throw e;
+        }
+        if (pool != null) {
+            pool.release(sslSocket);
+        } else {
+            sslSocket.close();
+        }
+    }
+
+    private void converse() throws Exception {
         int bytesWritten = 0;
         int bytesRead = 0;
         int data;
@@ -59,8 +53,9 @@ public class Client {
         }
         sslSocket.getOutputStream().flush();
 
-        // Read data from SSLSocket input stream and write to standard output
-        while ((data = sslSocket.getInputStream().read()) != -1) {
+        // Read data from SSLSocket input stream and write to standard output. A pooled connection stays
+        // open, so read the server's echo of what was written rather than up to the end of the stream.
+        while ((pool == null || bytesRead < bytesWritten) && (data = sslSocket.getInputStream().read()) != -1) {
             System.out.write(data);
             bytesRead++;
         }
@@ -69,7 +64,6 @@ public class Client {
         System.out.println();
         System.out.println("Wrote " + bytesWritten + " bytes");
         System.out.println("Read " + bytesRead + " bytes");
-        sslSocket.close();
     }
 
     public static void main(String[] args) throws Exception {
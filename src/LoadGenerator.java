@@ -0,0 +1,225 @@
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import security.ClientSession;
+import security.Histogram;
+import security.SSLMultiplexer;
+import security.SSLSocket;
+
+// Drives a Server over SSLSocket with load.connections concurrent connections, each sending
+// load.message_size byte messages and waiting for the case-flipped echo. Without load.rate every
+// connection sends as soon as its last reply arrives (closed loop); with it, messages are due at a fixed
+// total rate and latency is counted from when a message was due, so a stalled server is not hidden by
+// the generator slowing down with it (open loop). With load.streams, every that many connections share one
+// multiplexed socket (SSLMultiplexer) as streams of it, and a reconnect opens a new stream instead.
+public class LoadGenerator {
+    private final ClientSession session;
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int messageSize;
+    private final double rate;
+    private final int reconnect;
+    private final int streams;
+    // The shared sockets of multiplexed connections, by group
+    private final SSLMultiplexer[] multiplexers;
+
+    private final Histogram latency = new Histogram();
+    private final Histogram handshakeLatency = new Histogram();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    public LoadGenerator(ClientSession session, String host, int port) {
+        this.session = session;
+        this.host = host;
+        this.port = port;
+        this.connections = Integer.parseInt(System.getProperty("load.connections", "16"));
+        this.messageSize = Integer.parseInt(System.getProperty("load.message_size", "1024"));
+        this.rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+        // Messages per connection before it is closed and a new handshake done; 0 keeps connections open
+        this.reconnect = Integer.parseInt(System.getProperty("load.reconnect", "0"));
+        this.streams = Integer.parseInt(System.getProperty("load.streams", "0"));
+        this.multiplexers = new SSLMultiplexer[this.streams > 0 ? (this.connections + this.streams - 1) / this.streams : 0];
+        this.session.setResumption(Boolean.parseBoolean(System.getProperty("load.resume", "false")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("Usage: java [ -Dload.<option>=<value> ... ] LoadGenerator <host> <port> <name>");
+            System.out.println("   load.connections   concurrent connections (16)");
+            System.out.println("   load.message_size  bytes per message, 0 for handshakes only (1024)");
+            System.out.println("   load.rate          total messages per second, 0 for closed loop (0)");
+            System.out.println("   load.reconnect     messages per connection before a new handshake, 0 for never (0)");
+            System.out.println("   load.resume        resume sessions instead of full handshakes (false)");
+            System.out.println("   load.streams       connections multiplexed over each socket, 0 for a socket each (0)");
+            System.out.println("   load.warmup        seconds before measuring (5)");
+            System.out.println("   load.duration      seconds measured (30)");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(ClientSession.load(args[2]), args[0], Integer.parseInt(args[1]));
+        generator.execute(Long.parseLong(System.getProperty("load.warmup", "5")), Long.parseLong(System.getProperty("load.duration", "30")));
+    }
+
+    public void execute(long warmupSeconds, long durationSeconds) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < this.connections; i++) {
+            int connection = i;
+            Thread thread = new Thread(() -> drive(connection), "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        this.latency.reset();
+        this.handshakeLatency.reset();
+        this.messages.reset();
+        this.handshakes.reset();
+        this.errors.reset();
+        this.recording = true;
+
+        long start = System.nanoTime();
+        long lastMessages = 0;
+        for (long second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime())));
+            long total = this.messages.sum();
+            System.out.println(second + "s: " + (total - lastMessages) + " msg/s, " + this.latency.toString(TimeUnit.MICROSECONDS));
+            lastMessages = total;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        this.recording = false;
+        this.running = false;
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        for (SSLMultiplexer multiplexer : this.multiplexers) {
+            if (multiplexer != null) {
+                try {
+                    multiplexer.close();
+                } catch (Exception e) {
+                    // Already broken
+                }
+            }
+        }
+        report(seconds);
+    }
+
+    private void report(double seconds) {
+        long messageCount = this.messages.sum();
+        System.out.println();
+        System.out.println("Connections: " + this.connections + (this.streams > 0 ? " over " + this.multiplexers.length + " sockets" : "")
+                + ", message size: " + this.messageSize + ", " + (this.rate > 0 ? "open loop at " + this.rate + " msg/s" : "closed loop"));
+        System.out.printf("Handshakes: %d (%.1f/s) %s%n", this.handshakes.sum(), this.handshakes.sum() / seconds,
+                this.handshakeLatency.toString(TimeUnit.MILLISECONDS));
+        System.out.printf("Messages: %d (%.1f/s), %.2f MB/s each way%n", messageCount, messageCount / seconds,
+                messageCount * (double) this.messageSize / seconds / (1024 * 1024));
+        System.out.println("Latency: " + this.latency.toString(TimeUnit.MICROSECONDS) + String.format(" mean=%.1fus", this.latency.getMean() / 1000));
+        System.out.println("Errors: " + this.errors.sum());
+    }
+
+    // The socket shared by a group of multiplexed connections, connecting again if it has failed
+    private SSLMultiplexer multiplexer(int group) throws Exception {
+        synchronized (this.multiplexers) {
+            SSLMultiplexer multiplexer = this.multiplexers[group];
+            if (multiplexer == null || multiplexer.isClosed()) {
+                long start = System.nanoTime();
+                multiplexer = new SSLMultiplexer(this.session.connect(this.host, this.port), true);
+                if (this.recording) {
+                    this.handshakeLatency.recordNanos(start);
+                    this.handshakes.increment();
+                }
+                this.multiplexers[group] = multiplexer;
+            }
+            return multiplexer;
+        }
+    }
+
+    // One connection's loop; rate and reconnect apply to it alone, so the total rate is split evenly
+    private void drive(int connection) {
+        byte[] message = new byte[this.messageSize];
+        byte[] expected = new byte[this.messageSize];
+        byte[] reply = new byte[this.messageSize];
+        for (int i = 0; i < this.messageSize; i++) {
+            message[i] = (byte) ('a' + (connection + i) % 26);
+            expected[i] = (byte) (message[i] - 32);
+        }
+        long interval = this.rate > 0 ? (long) (1e9 * this.connections / this.rate) : 0;
+        // Stagger the connections so an open loop does not send in bursts
+        long due = System.nanoTime() + interval * connection / Math.max(1, this.connections);
+
+        while (this.running) {
+            Closeable socket = null;
+            try {
+                long start = System.nanoTime();
+                OutputStream out;
+                InputStream in;
+                if (this.streams > 0) {
+                    SSLMultiplexer.Stream stream = multiplexer(connection / this.streams).open();
+                    socket = stream;
+                    out = stream.getOutputStream();
+                    in = stream.getInputStream();
+                } else {
+                    SSLSocket sslSocket = this.session.connect(this.host, this.port);
+                    socket = sslSocket;
+                    if (this.recording) {
+                        this.handshakeLatency.recordNanos(start);
+                        this.handshakes.increment();
+                    }
+                    out = sslSocket.getOutputStream();
+                    in = sslSocket.getInputStream();
+                }
+                if (this.messageSize == 0) {
+                    continue;
+                }
+                for (int sent = 0; this.running && (this.reconnect == 0 || sent < this.reconnect); sent++) {
+                    if (interval > 0) {
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        start = due;
+                        due += interval;
+                    } else {
+                        start = System.nanoTime();
+                    }
+                    out.write(message);
+                    out.flush();
+                    if (in.readNBytes(reply, 0, reply.length) != reply.length || !Arrays.equals(reply, expected)) {
+                        throw new IllegalStateException("Bad reply");
+                    }
+                    if (this.recording) {
+                        this.latency.recordNanos(start);
+                        this.messages.increment();
+                    }
+                }
+            } catch (Exception e) {
+                if (this.running) {
+                    this.errors.increment();
+                    if (this.errors.sum() <= 10) {
+                        System.out.println("LOAD: " + e);
+                    }
+                    // Back off so a refusing server is not hammered
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (Exception e) {
+                        // Already broken
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,84 +1,318 @@
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import security.BufferPool;
+import security.Events;
+import security.Metrics;
 import security.RSA;
+import security.SSLMultiplexer;
+import security.SSLServerEngine;
 import security.SSLServerSocket;
 import security.SSLSocket;
+import security.SessionCache;
+import security.SessionTickets;
+import security.Transform;
+import security.UserDirectory;
 
 public class Server implements Runnable {
     private RSA.PrivateKey serverPrivateKey;
-    private Properties properties;
+    private UserDirectory users;
     private SSLServerSocket serverSocket;
+    private SSLServerEngine serverEngine;
+    private SessionCache sessions;
+    private SessionTickets tickets;
     private int port;
+    private ExecutorService executor;
+    private Semaphore connections;
+    private Recording recording;
+    private Transform transform;
+    private boolean multiplex;
+    private volatile boolean running = true;
 
     public Server() throws Exception {
+        // Handshake, RSA and traffic counters, readable over JMX as security:type=Metrics
+        Metrics.register();
+
+        // Flight Recorder: server.jfr=<file> records the default JDK events plus the handshake and packet
+        // pipeline events, and writes them to the file on shutdown
+        String jfrFile = System.getProperty("server.jfr");
+        if (jfrFile != null) {
+            recording = new Recording(Configuration.getConfiguration("default"));
+            Events.enable(recording);
+            recording.setDestination(Paths.get(jfrFile));
+            recording.start();
+        }
+
         // Load server private key
         String privateKeyFile = System.getProperty("server.private_key", "private_key.txt");
         try (FileInputStream fileInputStream = new FileInputStream(privateKeyFile)) {
             serverPrivateKey = new RSA.PrivateKey(fileInputStream);
         }
 
-        // Load user properties
+        // Load users, picking up edits to the file every server.users_reload milliseconds
         String usersFile = System.getProperty("server.users", "users.txt");
-        try (FileInputStream fileInputStream = new FileInputStream(usersFile)) {
-            properties = new Properties();
-            properties.load(fileInputStream);
-        }
+        users = new UserDirectory(Paths.get(usersFile));
+        users.watch(Long.parseLong(System.getProperty("server.users_reload", "5000")));
+
+        // What the server does to each request block: server.transform=case_flip (default), identity or a Transform class name
+        transform = Transform.forName(System.getProperty("server.transform", "case_flip"));
 
         // Set server port
         String portString = System.getProperty("server.port");
         port = (portString != null) ? Integer.parseInt(portString) : 5000;
 
-        // Create SSL server socket
-        serverSocket = new SSLServerSocket(port, serverPrivateKey, properties);
+        // Session resumption: server.session_cache entries (0 turns it off), each living server.session_ttl seconds
+        int sessionCacheSize = Integer.parseInt(System.getProperty("server.session_cache", "10000"));
+        if (sessionCacheSize > 0) {
+            long sessionTtl = Long.parseLong(System.getProperty("server.session_ttl", "300"));
+            sessions = new SessionCache(sessionCacheSize, TimeUnit.SECONDS.toMillis(sessionTtl));
+        }
+
+        // Session tickets: nodes sharing server.ticket_secret resume each other's clients; keys rotate every server.ticket_rotation seconds
+        String ticketSecret = System.getProperty("server.ticket_secret");
+        if (ticketSecret != null) {
+            long rotation = Long.parseLong(System.getProperty("server.ticket_rotation", "3600"));
+            long lifetime = Long.parseLong(System.getProperty("server.ticket_lifetime", "86400"));
+            tickets = new SessionTickets(ticketSecret.getBytes(), TimeUnit.SECONDS.toMillis(rotation), TimeUnit.SECONDS.toMillis(lifetime));
+        }
+
+        // server.multiplex=true serves every stream a client opens over one connection (SSLMultiplexer) as a request handler of its own
+        multiplex = Boolean.parseBoolean(System.getProperty("server.multiplex", "false"));
+
+        // Handshake on worker threads so a slow client cannot hold up accept or a selector; server.handshake_workers=0 keeps it inline
+        String workersString = System.getProperty("server.handshake_workers");
+        int workers = (workersString != null) ? Integer.parseInt(workersString) : Runtime.getRuntime().availableProcessors();
+
+        // Create SSL server socket, or the non-blocking engine when server.engine=nio
+        if ("nio".equals(System.getProperty("server.engine", "blocking"))) {
+            if (multiplex) {
+                throw new IllegalArgumentException("server.multiplex needs server.engine=blocking");
+            }
+            String selectorsString = System.getProperty("server.selectors");
+            int selectors = (selectorsString != null) ? Integer.parseInt(selectorsString) : Runtime.getRuntime().availableProcessors();
+            serverEngine = new SSLServerEngine(new InetSocketAddress(port), selectors, serverPrivateKey, users, new EngineRequestHandler(transform));
+            serverEngine.setSessionCache(sessions);
+            serverEngine.setSessionTickets(tickets);
+            serverEngine.setHandshakeWorkers(workers);
+        } else {
+            serverSocket = new SSLServerSocket(port, serverPrivateKey, users);
+            serverSocket.setSessionCache(sessions);
+            serverSocket.setSessionTickets(tickets);
+            if (workers > 0) {
+                int timeout = Integer.parseInt(System.getProperty("server.handshake_timeout", "10000"));
+                serverSocket.startHandshakes(workers, timeout, 1024);
+            }
+        }
+
+        // Choose how request handlers run: server.mode=thread (default), pool or virtual
+        executor = newExecutor(System.getProperty("server.mode", "thread"));
+        String maxConnectionsString = System.getProperty("server.max_connections");
+        connections = new Semaphore((maxConnectionsString != null) ? Integer.parseInt(maxConnectionsString) : Integer.MAX_VALUE);
     }
 
     public static void main(String[] args) throws Exception {
-        new Server().run();
+        Server server = new Server();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+        server.run();
+    }
+
+    // Stop accepting and give running handlers server.drain_seconds to finish
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverEngine != null) {
+                serverEngine.close();
+            } else {
+                serverSocket.close();
+            }
+            executor.shutdown();
+            long drainSeconds = Long.parseLong(System.getProperty("server.drain_seconds", "30"));
+            if (!executor.awaitTermination(drainSeconds, TimeUnit.SECONDS)) {
+                System.out.println("SERVER: " + executor.shutdownNow().size() + " handlers not drained");
+            }
+        } catch (Exception e) {
+            System.out.println("SERVER: " + e);
+        }
+        if (sessions != null) {
+            System.out.println("SERVER: " + sessions);
+        }
+        System.out.println("SERVER: " + Metrics.get());
+        // With -Dsecurity.pool.leak_detection=true, list the buffers of connections that were never closed
+        int leaks = BufferPool.get().reportLeaks(System.out);
+        if (leaks > 0) {
+            System.out.println("SERVER: " + leaks + " pooled buffers not released");
+        }
+        // On JVM exit Flight Recorder may already have stopped and written the recording itself
+        if (recording != null) {
+            if (recording.getState() == RecordingState.RUNNING) {
+                recording.stop();
+            }
+            System.out.println("SERVER: flight recording written to " + recording.getDestination());
+        }
+    }
+
+    // Handlers should not pin virtual threads: nothing on their path holds a monitor across socket I/O (BufferPool's
+    // size classes and SSLServerSocket.established only guard bookkeeping). Checked with thread dumps on JDK 17 only
+    private static ExecutorService newExecutor(String mode) {
+        switch (mode) {
+            case "virtual":
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("SERVER: virtual threads need JDK 21, using one thread per connection");
+                    return newExecutor("thread");
+                }
+            case "pool":
+                String poolSizeString = System.getProperty("server.pool_size");
+                int poolSize = (poolSizeString != null) ? Integer.parseInt(poolSizeString) : 16 * Runtime.getRuntime().availableProcessors();
+                return Executors.newFixedThreadPool(poolSize);
+            case "thread":
+                return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.SECONDS, new SynchronousQueue<>());
+            default:
+                throw new IllegalArgumentException("Unknown server.mode: " + mode);
+        }
     }
 
     @Override
     public void run() {
-        while (true) {
+        if (serverEngine != null) {
+            serverEngine.run();
+            return;
+        }
+        while (running) {
             try {
-                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                new Thread(new RequestHandler(clientSocket)).start();
+                connections.acquire();
+                SSLSocket clientSocket;
+                try {
+                    clientSocket = (SSLSocket) serverSocket.accept();
+                } catch (Exception e) {
+                    connections.release();
+                    throw e;
+                }
+                if (multiplex) {
+                    // The accept loop waits on the connection for as long as it is open, so it gets a thread of
+                    // its own; on the executor it could fill a fixed pool and leave no room for the streams
+                    Thread thread = new Thread(() -> {
+                        try {
+                            serveStreams(clientSocket);
+                        } finally {
+                            connections.release();
+                        }
+                    }, "ssl-mux-accept");
+                    thread.setDaemon(true);
+                    thread.start();
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        new RequestHandler(clientSocket).run();
+                    } finally {
+                        connections.release();
+                    }
+                });
             } catch (Exception e) {
-                System.out.println("SERVER: " + e);
+                if (running) {
+                    System.out.println("SERVER: " + e);
+                }
+            }
+        }
+    }
+
+    // Hand each stream the client opens on a multiplexed connection to a RequestHandler until the client disconnects
+    private void serveStreams(SSLSocket socket) {
+        System.out.println("Connect...");
+        try (SSLMultiplexer multiplexer = new SSLMultiplexer(socket, false)) {
+            SSLMultiplexer.Stream stream;
+            while ((stream = multiplexer.accept()) != null) {
+                executor.execute(new RequestHandler(stream));
             }
+            System.out.println("Disconnect...");
+        } catch (Exception e) {
+            System.out.println("HANDLER: " + e);
         }
     }
 
+    // Reads whatever the client has sent as one block, transforms it and writes it back, flushing once
+    // nothing more is waiting, so a burst of requests goes back as one batch
     public class RequestHandler implements Runnable {
+        private static final int BLOCK_SIZE = 16 * 1024;
+
         private SSLSocket socket;
+        private SSLMultiplexer.Stream stream;
 
         public RequestHandler(SSLSocket socket) {
             this.socket = socket;
         }
 
+        // One stream of a multiplexed connection; the connection itself is announced by serveStreams
+        public RequestHandler(SSLMultiplexer.Stream stream) {
+            this.stream = stream;
+        }
+
         @Override
         public void run() {
             try {
-                System.out.println("Connect...");
-                int data;
-                while ((data = socket.getInputStream().read()) != -1) {
-                    if ((data >= 97) && (data <= 122)) {
-                        data -= 32;
-                    } else if ((data >= 65) && (data <= 90)) {
-                        data += 32;
-                    }
-                    socket.getOutputStream().write(data);
-                    if (socket.getInputStream().available() == 0) {
-                        socket.getOutputStream().flush();
+                if (socket != null) {
+                    System.out.println("Connect...");
+                }
+                InputStream in = (socket != null) ? socket.getInputStream() : stream.getInputStream();
+                OutputStream out = (socket != null) ? socket.getOutputStream() : stream.getOutputStream();
+                byte[] block = new byte[BLOCK_SIZE];
+                int length;
+                while ((length = in.read(block, 0, block.length)) != -1) {
+                    out.write(block, 0, transform.apply(block, 0, length));
+                    if (in.available() == 0) {
+                        out.flush();
                     }
                 }
-                socket.getOutputStream().flush();
-                socket.close();
-                System.out.println("Disconnect...");
+                out.flush();
+                if (socket != null) {
+                    socket.close();
+                    System.out.println("Disconnect...");
+                } else {
+                    stream.close();
+                }
             } catch (Exception e) {
                 System.out.println("HANDLER: " + e);
             }
         }
     }
+
+    // RequestHandler for connections served by the non-blocking engine; each call is one decrypted batch
+    public static class EngineRequestHandler implements SSLServerEngine.Handler {
+        private Transform transform;
+
+        public EngineRequestHandler(Transform transform) {
+            this.transform = transform;
+        }
+
+        @Override
+        public void opened(SSLServerEngine.Session session) {
+            System.out.println("Connect...");
+        }
+
+        @Override
+        public void received(SSLServerEngine.Session session, byte[] data, int off, int len) throws IOException {
+            session.write(data, off, transform.apply(data, off, len));
+        }
+
+        @Override
+        public void closed(SSLServerEngine.Session session) {
+            System.out.println("Disconnect...");
+        }
+    }
 }
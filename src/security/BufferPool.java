@@ -0,0 +1,281 @@
+package security;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide pool of byte arrays in power-of-two size classes from 512 bytes to 128 KB, shared by the
+// crypto streams and the engine sessions so that connections lease their ring and frame buffers while they
+// use them instead of each allocating their own. Every thread keeps a few arrays of each class to itself, so
+// a lease and release on one thread touch no shared state; the rest wait in one stack per class, holding at
+// most security.pool.max_idle bytes (16 MB) each. The caches of finished threads go back to the shared stacks
+// the next time a lease would otherwise allocate. Arrays come back dirty and may be longer than asked for;
+// larger than 128 KB are simply allocated and left to the GC.
+//
+// -Dsecurity.pool.leak_detection=true is for tests: each lease remembers where it was made, released arrays
+// are overwritten so a use after release fails its checksum, releasing an array twice throws, and
+// reportLeaks() prints every lease not yet given back.
+public final class BufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 17;
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final BufferPool INSTANCE = new BufferPool(Long.getLong("security.pool.max_idle", 16L << 20),
+            Boolean.getBoolean("security.pool.leak_detection"));
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::newThreadCache);
+    // Caches of every thread that has used the pool, and how many threads started using it since the last drain
+    private final Set<ThreadCache> threadCaches = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger newThreads = new AtomicInteger();
+    // Where each outstanding array was leased, with leak detection on
+    private final Map<byte[], Throwable> leases;
+    private final LongAdder leaseCount = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder leasedBytes = new LongAdder();
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    private BufferPool(long maxIdleBytes, boolean leakDetection) {
+        for (int i = 0; i < this.classes.length; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            this.classes[i] = new SizeClass(size, (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxIdleBytes / size)));
+        }
+        this.leases = leakDetection ? new ConcurrentHashMap<>() : null;
+    }
+
+    public static BufferPool get() {
+        return INSTANCE;
+    }
+
+    // An array of at least size bytes, to be given back with release() once nothing refers to it
+    public byte[] lease(int size) {
+        int index = classFor(size);
+        if (index < 0) {
+            return new byte[size];
+        }
+        byte[] array = this.threadCache.get().poll(index);
+        if (array == null) {
+            array = this.classes[index].poll();
+        }
+        if (array == null && this.newThreads.get() > 0 && drainFinishedThreads()) {
+            array = this.classes[index].poll();
+        }
+        if (array == null) {
+            array = new byte[this.classes[index].size];
+            this.allocations.increment();
+        }
+        this.leaseCount.increment();
+        this.leasedBytes.add(array.length);
+        if (this.leases != null) {
+            this.leases.put(array, new Throwable("Leased " + size + " bytes on " + Thread.currentThread().getName()));
+        }
+        return array;
+    }
+
+    public void release(byte[] array) {
+        int index = classOf(array.length);
+        if (index < 0) {
+            return;
+        }
+        if (this.leases != null) {
+            if (this.leases.remove(array) == null) {
+                throw new IllegalStateException("Released a " + array.length + " byte buffer that is not leased");
+            }
+            Arrays.fill(array, (byte) 0x5A);
+        }
+        this.leasedBytes.add(-array.length);
+        if (!this.threadCache.get().offer(index, array)) {
+            this.classes[index].offer(array);
+        }
+    }
+
+    public boolean isLeakDetection() {
+        return this.leases != null;
+    }
+
+    // Bytes currently out on lease
+    public long getLeasedBytes() {
+        return this.leasedBytes.sum();
+    }
+
+    // Bytes waiting in the shared stacks; arrays kept by threads for themselves are not counted
+    public long getIdleBytes() {
+        return this.idleBytes.get();
+    }
+
+    public long getLeases() {
+        return this.leaseCount.sum();
+    }
+
+    // Leases that found no free array and allocated a new one
+    public long getAllocations() {
+        return this.allocations.sum();
+    }
+
+    void resetCounters() {
+        this.leaseCount.reset();
+        this.allocations.reset();
+    }
+
+    // Print where every outstanding lease was made and return how many there are; nothing without leak detection
+    public int reportLeaks(PrintStream out) {
+        if (this.leases == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Throwable lease : this.leases.values()) {
+            lease.printStackTrace(out);
+            count++;
+        }
+        return count;
+    }
+
+    public String toString() {
+        return "leased=" + (getLeasedBytes() >> 10) + "KB idle=" + (getIdleBytes() >> 10) + "KB leases=" + getLeases()
+                + " allocations=" + getAllocations();
+    }
+
+    // Smallest class holding size bytes, or -1 if there is none
+    private static int classFor(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    // Class of an array of exactly length bytes, or -1 if it was not leased from one
+    private static int classOf(int length) {
+        int index = classFor(length);
+        return index >= 0 && (1 << (MIN_SHIFT + index)) == length ? index : -1;
+    }
+
+    private ThreadCache newThreadCache() {
+        ThreadCache cache = new ThreadCache(Thread.currentThread(), this.classes.length);
+        this.threadCaches.add(cache);
+        this.newThreads.incrementAndGet();
+        return cache;
+    }
+
+    // Move the arrays cached by threads that have ended to the shared stacks; true if there were any
+    private boolean drainFinishedThreads() {
+        this.newThreads.set(0);
+        boolean drained = false;
+        for (ThreadCache cache : this.threadCaches) {
+            // isAlive() returning false also makes everything the thread did to its cache visible here;
+            // only the drainer that takes the cache out of the set may empty it
+            if (!cache.thread.isAlive() && this.threadCaches.remove(cache)) {
+                for (int index = 0; index < this.classes.length; index++) {
+                    byte[] array;
+                    while ((array = cache.poll(index)) != null) {
+                        this.classes[index].offer(array);
+                        drained = true;
+                    }
+                }
+            }
+        }
+        return drained;
+    }
+
+    private class SizeClass {
+        private final int size;
+        private final int capacity;
+        private byte[][] stack = new byte[16][];
+        private int count;
+
+        SizeClass(int size, int capacity) {
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] poll() {
+            if (this.count == 0) {
+                return null;
+            }
+            byte[] array = this.stack[--this.count];
+            this.stack[this.count] = null;
+            idleBytes.addAndGet(-this.size);
+            return array;
+        }
+
+        // Keep array unless the class already holds its share of idle bytes
+        synchronized void offer(byte[] array) {
+            if (this.count == this.capacity) {
+                return;
+            }
+            if (this.count == this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, Math.min(2 * this.count, this.capacity));
+            }
+            this.stack[this.count++] = array;
+            idleBytes.addAndGet(this.size);
+        }
+    }
+
+    // Arrays one thread keeps for itself; only that thread touches it until it has ended
+    private static class ThreadCache {
+        private final Thread thread;
+        private final byte[][][] arrays;
+        private final int[] counts;
+
+        ThreadCache(Thread thread, int classes) {
+            this.thread = thread;
+            this.arrays = new byte[classes][THREAD_CACHE_SIZE][];
+            this.counts = new int[classes];
+        }
+
+        byte[] poll(int index) {
+            if (this.counts[index] == 0) {
+                return null;
+            }
+            byte[] array = this.arrays[index][--this.counts[index]];
+            this.arrays[index][this.counts[index]] = null;
+            return array;
+        }
+
+        boolean offer(int index, byte[] array) {
+            if (this.counts[index] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            this.arrays[index][this.counts[index]++] = array;
+            return true;
+        }
+    }
+
+    // Reference count for buffers that one thread does I/O with while another may close the connection.
+    // I/O pins the guard around every use of the buffers, close() drops the owner's own reference, and
+    // release() runs once after the last reference is gone, so a buffer never goes back to the pool (and
+    // out to another connection) while a read or write on this one is still using it.
+    abstract static class Guard {
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // False once the guard is closed and the buffers may already be gone
+        final boolean pin() {
+            for (;;) {
+                int count = this.references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (this.references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        final void unpin() {
+            if (this.references.decrementAndGet() == 0) {
+                release();
+            }
+        }
+
+        final void close() {
+            if (this.closed.compareAndSet(false, true)) {
+                unpin();
+            }
+        }
+
+        abstract void release();
+    }
+}
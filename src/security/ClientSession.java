@@ -0,0 +1,111 @@
+package security;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Opens connections for one user to one server. The name and company greeting tokens never change,
+// so they are RSA-encrypted once per server key and user; only the one-time key is encrypted per connection.
+public class ClientSession {
+    // Encrypted { name, company } tokens by server key and user, shared by every ClientSession in the process
+    private static final ConcurrentMap<String, byte[][]> IDENTITY_TOKENS = new ConcurrentHashMap<>();
+
+    private String name;
+    private RSA.PublicKey serverPublicKey;
+    private Hash hash;
+    private byte[][] identityTokens;
+    private boolean resumption;
+    private volatile SSLSession session;
+
+    public ClientSession(String name, String company, RSA.PublicKey serverPublicKey, RSA.PrivateKey privateKey, Hash hash) throws Exception {
+        this.name = name;
+        this.serverPublicKey = serverPublicKey;
+        this.hash = hash;
+        this.identityTokens = identityTokens(name, company, serverPublicKey, privateKey);
+    }
+
+    // Read company, keys and Hash parameters from a client properties file such as mickey.txt
+    public ClientSession(String name, Properties properties) throws Exception {
+        this(name, properties.getProperty("company"),
+                new RSA.PublicKey(properties.getProperty("server.public_key").getBytes()),
+                new RSA.PrivateKey(properties.getProperty("private_key").getBytes()),
+                Hash.load(properties, ""));
+    }
+
+    // Load <name>.txt from the working directory
+    public static ClientSession load(String name) throws Exception {
+        Properties properties = new Properties();
+        try (FileInputStream fileInputStream = new FileInputStream(name + ".txt")) {
+            properties.load(fileInputStream);
+        }
+        return new ClientSession(name, properties);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public Hash getHash() {
+        return this.hash;
+    }
+
+    // Reuse the last session (ticket or id) for later connections instead of a full handshake
+    public void setResumption(boolean resumption) {
+        this.resumption = resumption;
+        if (!resumption) {
+            this.session = null;
+        }
+    }
+
+    public SSLSocket connect(String host, int port) throws IOException {
+        SSLSession last = this.session;
+        if (this.resumption && last != null) {
+            try {
+                return new SSLSocket(host, port, last);
+            } catch (SSLSession.ExpiredException e) {
+                this.session = null;
+            }
+        }
+
+        byte[] oneTimeKey = OneTimeKey.newKey(this.hash, this.serverPublicKey);
+        byte[] encryptedOneTimeKey;
+        try {
+            encryptedOneTimeKey = RSA.cipher(oneTimeKey, this.serverPublicKey);
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        }
+        SSLSocket socket = new SSLSocket(host, port, this.identityTokens[0], this.identityTokens[1], encryptedOneTimeKey,
+                oneTimeKey, this.hash, this.resumption);
+        if (this.resumption) {
+            this.session = socket.getSession();
+        }
+        return socket;
+    }
+
+    // Asynchronous connection in group (null for the default group), always through a full handshake
+    public CompletableFuture<SSLAsyncSocket> connectAsync(String host, int port, AsynchronousChannelGroup group) {
+        byte[] oneTimeKey = OneTimeKey.newKey(this.hash, this.serverPublicKey);
+        byte[] encryptedOneTimeKey;
+        try {
+            encryptedOneTimeKey = RSA.cipher(oneTimeKey, this.serverPublicKey);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new IOException(e.toString()));
+        }
+        return SSLAsyncSocket.connect(host, port, group, this.identityTokens[0], this.identityTokens[1], encryptedOneTimeKey,
+                oneTimeKey, this.hash);
+    }
+
+    private static byte[][] identityTokens(String name, String company, RSA.PublicKey serverPublicKey, RSA.PrivateKey privateKey) throws Exception {
+        String cacheKey = serverPublicKey + "\n" + name + "\n" + company + "\n" + privateKey.getN();
+        byte[][] tokens = IDENTITY_TOKENS.get(cacheKey);
+        if (tokens == null) {
+            tokens = new byte[][] { RSA.cipher(name.getBytes(), serverPublicKey), RSA.cipher(company.getBytes(), privateKey) };
+            IDENTITY_TOKENS.putIfAbsent(cacheKey, tokens);
+        }
+        return tokens;
+    }
+}
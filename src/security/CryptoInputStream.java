@@ -3,108 +3,294 @@ package security;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
 
 public class CryptoInputStream extends FilterInputStream
 {
+  // Approximate size of the ciphertext ring; rounded down to whole packets
+  protected static final int RING_SIZE = 16 * 1024;
+
   protected Hash H;
   protected byte[] K;
+  protected Metrics.Traffic traffic;
+  // Names the connection in Flight Recorder events
+  protected String connection;
+  // Ciphertext ring, leased from BufferPool. Its capacity is a whole number of packets, so a packet never wraps around.
   protected byte[] buffer;
+  protected int capacity;
+  // Decrypted data of the current batch is buffer[pointer..limit)
   protected int pointer;
+  protected int limit;
+  // Ciphertext starts at buffer[start] and is count bytes long; the first release bytes back the current batch
+  private int start;
+  private int count;
+  private int release;
+  // Keeps the ring out of the pool until no read is using it, however the stream is closed
+  private final BufferPool.Guard guard = new BufferPool.Guard()
+  {
+    void release()
+    {
+      BufferPool.get().release(CryptoInputStream.this.buffer);
+    }
+  };
 
   public CryptoInputStream(InputStream paramInputStream, byte[] paramArrayOfByte, Hash paramHash)
+  {
+    this(paramInputStream, paramArrayOfByte, paramHash, Metrics.get().traffic(null));
+  }
+
+  // Count what this stream decrypts against paramTraffic, usually the connection's user
+  public CryptoInputStream(InputStream paramInputStream, byte[] paramArrayOfByte, Hash paramHash, Metrics.Traffic paramTraffic)
   {
     super(paramInputStream);
     this.H = paramHash;
     this.K = paramArrayOfByte;
+    this.traffic = paramTraffic;
+    int i = paramHash.getPacketSize();
+    this.capacity = (Math.max(1, RING_SIZE / i) * i);
+    this.buffer = BufferPool.get().lease(this.capacity);
     this.pointer = 0;
+    this.limit = 0;
   }
 
   public int available()
     throws IOException
   {
-    int i = super.available();
-    return i / this.H.getPacketSize() * this.H.getNumberOfDataBytes();
+    int i = this.count - this.release + super.available();
+    return this.limit - this.pointer + i / this.H.getPacketSize() * this.H.getNumberOfDataBytes();
   }
 
   public int read()
     throws IOException
   {
-    if (this.pointer == 0) {
-     int i = 0;
-      byte[] arrayOfByte = new byte[this.H.getPacketSize()];
-      for (int k = 0; k < this.H.getPacketSize(); k++)
-      {
-        int m = this.in.read();
-        if (m == -1) {
-          if (k == 0) return -1;
+    pin();
+    try {
+      if ((this.pointer == this.limit) && (!nextBatch(true))) {
+        return -1;
+      }
+      return this.buffer[(this.pointer++)] & 0xFF;
+    } finally {
+      this.guard.unpin();
+    }
+  }
 
-          throw new IOException("Data Reading ERROR !!!");
+  public int read(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
+    throws IOException
+  {
+    if (paramArrayOfByte == null) throw new NullPointerException("Empty Buffer");
+    Objects.checkFromIndexSize(paramInt1, paramInt2, paramArrayOfByte.length);
+    if (paramInt2 == 0) {
+      return 0;
+    }
+
+    int i = 0;
+    pin();
+    try {
+      while (i < paramInt2) {
+        // Block only until the first byte; after that, stop once more data would mean waiting on the socket
+        if ((this.pointer == this.limit) && (!nextBatch(i == 0))) {
+          break;
         }
-        arrayOfByte[(i++)] = ((byte)m);
+        int j = Math.min(paramInt2 - i, this.limit - this.pointer);
+        System.arraycopy(this.buffer, this.pointer, paramArrayOfByte, paramInt1 + i, j);
+        this.pointer += j;
+        i += j;
       }
+    } finally {
+      this.guard.unpin();
+    }
+    return i == 0 ? -1 : i;
+  }
 
-      try
-      {
-        arrayOfByte = OneTimeKey.xor(arrayOfByte, this.K);
-        this.buffer = this.H.unpack(arrayOfByte);
+  public int readNBytes(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
+    throws IOException
+  {
+    Objects.checkFromIndexSize(paramInt1, paramInt2, paramArrayOfByte.length);
+    int i = 0;
+    pin();
+    try {
+      while (i < paramInt2) {
+        if ((this.pointer == this.limit) && (!nextBatch(true))) {
+          break;
+        }
+        int j = Math.min(paramInt2 - i, this.limit - this.pointer);
+        System.arraycopy(this.buffer, this.pointer, paramArrayOfByte, paramInt1 + i, j);
+        this.pointer += j;
+        i += j;
       }
-      catch (RuntimeException localRuntimeException) {
-        System.out.println(localRuntimeException);
+    } finally {
+      this.guard.unpin();
+    }
+    return i;
+  }
+
+  public long transferTo(OutputStream paramOutputStream)
+    throws IOException
+  {
+    Objects.requireNonNull(paramOutputStream, "out");
+    long l = 0L;
+    pin();
+    try {
+      while ((this.pointer != this.limit) || (nextBatch(true))) {
+        int i = this.limit - this.pointer;
+        paramOutputStream.write(this.buffer, this.pointer, i);
+        this.pointer = this.limit;
+        l += i;
       }
-      catch (Exception localException) {
-        throw new IOException("Reading ERROR !!!");
+    } finally {
+      this.guard.unpin();
+    }
+    return l;
+  }
+
+  // Write the next paramLong bytes to paramWritableByteChannel straight from the decrypted batches, without
+  // copying them out first; returns the number written, less than paramLong only at end of stream
+  public long transferTo(WritableByteChannel paramWritableByteChannel, long paramLong)
+    throws IOException
+  {
+    long l = 0L;
+    pin();
+    try {
+      while (l < paramLong) {
+        if ((this.pointer == this.limit) && (!nextBatch(true))) {
+          break;
+        }
+        int i = (int)Math.min(paramLong - l, this.limit - this.pointer);
+        ByteBuffer localByteBuffer = ByteBuffer.wrap(this.buffer, this.pointer, i);
+        while (localByteBuffer.hasRemaining()) {
+          paramWritableByteChannel.write(localByteBuffer);
+        }
+        this.pointer += i;
+        l += i;
       }
+    } finally {
+      this.guard.unpin();
     }
+    return l;
+  }
 
-    int i = this.buffer[this.pointer];
-    int j = this.buffer.length;
-    this.pointer = ((this.pointer + 1) % j);
-    return i;
+  // Skips whole decrypted batches at a time; packets are still verified as they go by
+  public long skip(long paramLong) throws IOException
+  {
+    long l = 0L;
+    pin();
+    try {
+      while (l < paramLong) {
+        if ((this.pointer == this.limit) && (!nextBatch(true))) {
+          break;
+        }
+        int i = (int)Math.min(paramLong - l, this.limit - this.pointer);
+        this.pointer += i;
+        l += i;
+      }
+    } finally {
+      this.guard.unpin();
+    }
+    return l;
   }
 
-  public int read(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  public void close()
     throws IOException
   {
-    if (paramArrayOfByte == null) throw new NullPointerException("Empty Buffer");
+    try {
+      super.close();
+    } finally {
+      release();
+    }
+  }
 
-    int k = this.H.getPacketSize();
-    int m = this.H.getNumberOfDataBytes();
+  // Give the ring back to the pool once no read is using it; reads after this fail
+  void release()
+  {
+    this.guard.close();
+  }
 
-    int i = paramInt1 / m;
-    int j = paramInt1 % m;
+  private void pin()
+    throws IOException
+  {
+    if (!this.guard.pin()) {
+      throw new IOException("Stream closed");
+    }
+  }
 
-    int n = (paramInt2 + j) / k;
-    int i2 = (paramInt2 + j) % k;
+  void setConnection(String paramString)
+  {
+    this.connection = paramString;
+  }
 
-    if (i2 != 0) {
-      n++;
-    }
-    byte[] arrayOfByte2 = new byte[n * k];
-    int i3 = i * k;
-    int i4 = n * k;
-    try
+  // Decrypt and verify the next run of buffered packets in place, reading more ciphertext if needed.
+  // Returns false at a clean end of stream, or when paramBoolean is false and that would block.
+  private boolean nextBatch(boolean paramBoolean)
+    throws IOException
+  {
+    int i = this.H.getPacketSize();
+    int j = this.capacity;
+    do
     {
-      if (super.available() >= i4) {
-        int i1 = this.in.read(arrayOfByte2, i3, i4);
-        if (i1 == -1) return i1;
-        byte[] arrayOfByte1 = OneTimeKey.xor(arrayOfByte2, this.K);
-        arrayOfByte1 = this.H.unpack(arrayOfByte1);
-        System.arraycopy(arrayOfByte1, 0, paramArrayOfByte, 0, arrayOfByte1.length);
-        return i1 / k * m;
+      this.start = ((this.start + this.release) % j);
+      this.count -= this.release;
+      this.release = 0;
+      this.pointer = 0;
+      this.limit = 0;
+
+      while (this.count < i) {
+        if ((!paramBoolean) && (this.in.available() <= 0)) {
+          return false;
+        }
+        if (fill() == -1) {
+          if (this.count == 0) return false;
+
+          throw new IOException("Data Reading ERROR !!!");
+        }
       }
-      return 0;
-    }
-    catch (Exception localException) {
-      System.out.println("Decryption ERROR !!!");
-    }
-    return 0;
+
+      int k = Math.min(this.count, j - this.start) / i * i;
+      Events.Xor localXor = new Events.Xor();
+      localXor.begin();
+      OneTimeKey.xorPackets(this.buffer, this.start, k, this.K, i);
+      localXor.complete(this.connection, this.traffic.getUser(), k);
+      Events.Unpack localUnpack = new Events.Unpack();
+      localUnpack.begin();
+      int m;
+      try {
+        m = this.H.unpack(this.buffer, this.start, k, this.buffer, this.start);
+        localUnpack.complete(this.connection, this.traffic.getUser(), k);
+      } catch (IOException localIOException) {
+        throw localIOException;
+      } catch (Exception localException) {
+        Metrics.get().checksumError();
+        throw new IOException("Reading ERROR !!! (" + localException.getMessage() + ")", localException);
+      }
+      this.traffic.unpacked(k / i, m);
+      this.pointer = this.start;
+      this.limit = (this.start + m);
+      this.release = k;
+    } while (this.pointer == this.limit);
+    return true;
   }
 
-  public long skip(long paramLong) throws IOException
+  // Read as much ciphertext as fits contiguously after the buffered data
+  private int fill()
+    throws IOException
   {
-    for (long l = 0L; l < paramLong; l += 1L)
-      if (read() == -1) return l;
-    return paramLong;
+    int i = this.capacity;
+    int j = (this.start + this.count) % i;
+    int k = j >= this.start ? i - j : this.start - j;
+    if (this.count == i) {
+      k = 0;
+    }
+    int m = this.in.read(this.buffer, j, k);
+    if (m > 0) {
+      this.count += m;
+    }
+    return m;
   }
-}
\ No newline at end of file
+}
@@ -3,41 +3,100 @@ package security;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
 
 public class CryptoOutputStream extends FilterOutputStream
 {
+  // Largest frame handed to the underlying stream in one write
+  protected static final int MAX_FRAME_SIZE = 64 * 1024;
+
   protected Hash H;
   protected byte[] K;
+  protected Metrics.Traffic traffic;
+  // Names the connection in Flight Recorder events
+  protected String connection;
   private byte[] buffer;
   private int pointer;
+  // Leased from BufferPool with the first packet and kept until the stream is closed, so writes and flushes
+  // make no pool round trips; frameSize is how far it has had to grow
+  private byte[] frame;
+  private int frameSize;
+  private int framePointer;
+  private int maxFrame;
+  // Keeps the frame out of the pool until no write is using it, however the stream is closed
+  private final BufferPool.Guard guard = new BufferPool.Guard()
+  {
+    void release()
+    {
+      CryptoOutputStream.this.releaseFrame();
+    }
+  };
 
   public CryptoOutputStream(OutputStream paramOutputStream, byte[] paramArrayOfByte, Hash paramHash)
+  {
+    this(paramOutputStream, paramArrayOfByte, paramHash, Metrics.get().traffic(null));
+  }
+
+  // Count what this stream encrypts against paramTraffic, usually the connection's user
+  public CryptoOutputStream(OutputStream paramOutputStream, byte[] paramArrayOfByte, Hash paramHash, Metrics.Traffic paramTraffic)
   {
     super(paramOutputStream);
     this.H = paramHash;
     this.K = paramArrayOfByte;
+    this.traffic = paramTraffic;
     int i = paramHash.getNumberOfDataBytes();
     this.buffer = new byte[i];
     this.pointer = 0;
+    int j = paramHash.getPacketSize();
+    this.maxFrame = Math.max(1, MAX_FRAME_SIZE / j) * j;
+    this.frameSize = Math.min(16 * j, this.maxFrame);
+    this.framePointer = 0;
   }
 
   public void flush()
     throws IOException
   {
-    if (this.pointer != 0)
-      shallowFlush();
+    Events.Flush localFlush = new Events.Flush();
+    localFlush.begin();
+    int i = this.framePointer + (this.pointer != 0 ? this.H.getPackedSize(this.pointer) : 0);
+    shallowFlush();
     super.flush();
+    localFlush.complete(this.connection, this.traffic.getUser(), i);
+  }
+
+  public void close()
+    throws IOException
+  {
+    try {
+      super.close();
+    } finally {
+      release();
+    }
+  }
+
+  // Give the frame back to the pool once no write is using it; writes after this fail
+  void release()
+  {
+    this.guard.close();
+  }
+
+  void setConnection(String paramString)
+  {
+    this.connection = paramString;
   }
 
+  // Pack whatever is pending and hand the frame to the underlying stream, without flushing it
   protected void shallowFlush()
     throws IOException
   {
     if (this.pointer != 0)
     {
-      write(this.buffer, 0, this.pointer);
+      packFrame(this.buffer, 0, this.pointer);
       this.pointer = 0;
     }
+    writeFrame();
   }
 
   public void write(int paramInt)
@@ -46,22 +105,150 @@ public class CryptoOutputStream extends FilterOutputStream
     this.buffer[(this.pointer++)] = ((byte)paramInt);
     if (this.pointer == this.buffer.length) {
       this.pointer = 0;
-      write(this.buffer, 0, this.buffer.length);
+      packFrame(this.buffer, 0, this.buffer.length);
     }
   }
 
   public void write(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
     throws IOException
   {
-    byte[] arrayOfByte1 = new byte[paramInt2];
-    System.arraycopy(paramArrayOfByte, paramInt1, arrayOfByte1, 0, paramInt2);
+    Objects.checkFromIndexSize(paramInt1, paramInt2, paramArrayOfByte.length);
+
+    // Top up a partially filled packet first
+    if (this.pointer != 0) {
+      int i = Math.min(paramInt2, this.buffer.length - this.pointer);
+      System.arraycopy(paramArrayOfByte, paramInt1, this.buffer, this.pointer, i);
+      this.pointer += i;
+      paramInt1 += i;
+      paramInt2 -= i;
+      if (this.pointer == this.buffer.length) {
+        this.pointer = 0;
+        packFrame(this.buffer, 0, this.buffer.length);
+      }
+    }
+
+    // Whole packets go straight from the caller's array into the frame
+    int j = paramInt2 - paramInt2 % this.buffer.length;
+    if (j > 0) {
+      packFrame(paramArrayOfByte, paramInt1, j);
+    }
+
+    int k = paramInt2 - j;
+    if (k > 0) {
+      System.arraycopy(paramArrayOfByte, paramInt1 + j, this.buffer, 0, k);
+      this.pointer = k;
+    }
+  }
+
+  // Pack and send paramLong bytes read from paramReadableByteChannel, one frame's worth of data at a time through a leased chunk;
+  // returns the number sent, less than paramLong only if the channel ends first
+  public long transferFrom(ReadableByteChannel paramReadableByteChannel, long paramLong)
+    throws IOException
+  {
+    int i = this.maxFrame / this.H.getPacketSize() * this.H.getNumberOfDataBytes();
+    byte[] arrayOfByte = BufferPool.get().lease(i);
+    ByteBuffer localByteBuffer = ByteBuffer.wrap(arrayOfByte);
+    long l = 0L;
     try {
-      byte[] arrayOfByte2 = this.H.pack(arrayOfByte1);
-      arrayOfByte2 = OneTimeKey.xor(arrayOfByte2, this.K);
-      this.out.write(arrayOfByte2);
+      while (l < paramLong) {
+        localByteBuffer.clear().limit((int)Math.min(i, paramLong - l));
+        int j = paramReadableByteChannel.read(localByteBuffer);
+        if (j == -1) {
+          break;
+        }
+        write(arrayOfByte, 0, j);
+        l += j;
+      }
+    } finally {
+      BufferPool.get().release(arrayOfByte);
     }
-    catch (Exception localException) {
-      System.out.println(localException);
+    return l;
+  }
+
+  // Pack and encrypt paramInt2 bytes into the frame, writing the frame out whenever it reaches its limit
+  private void packFrame(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
+    throws IOException
+  {
+    pin();
+    try {
+      packFramePinned(paramArrayOfByte, paramInt1, paramInt2);
+    } finally {
+      this.guard.unpin();
+    }
+  }
+
+  private void packFramePinned(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
+    throws IOException
+  {
+    int i = this.H.getNumberOfDataBytes();
+    int j = this.H.getPacketSize();
+    while (paramInt2 > 0) {
+      int k = (this.maxFrame - this.framePointer) / j * i;
+      if (k == 0) {
+        writeFramePinned();
+        continue;
+      }
+      int m = Math.min(paramInt2, k);
+      int n = this.H.getPackedSize(m);
+      if (this.frame == null) {
+        this.frame = BufferPool.get().lease(Math.max(this.frameSize, n));
+      }
+      if (this.framePointer + n > this.frame.length) {
+        this.frameSize = Math.min(Math.max(2 * this.frame.length, this.framePointer + n), this.maxFrame);
+        byte[] arrayOfByte = BufferPool.get().lease(this.frameSize);
+        System.arraycopy(this.frame, 0, arrayOfByte, 0, this.framePointer);
+        BufferPool.get().release(this.frame);
+        this.frame = arrayOfByte;
+      }
+      Events.Pack localPack = new Events.Pack();
+      localPack.begin();
+      this.H.pack(paramArrayOfByte, paramInt1, m, this.frame, this.framePointer);
+      localPack.complete(this.connection, this.traffic.getUser(), m);
+      Events.Xor localXor = new Events.Xor();
+      localXor.begin();
+      OneTimeKey.xorPackets(this.frame, this.framePointer, n, this.K, j);
+      localXor.complete(this.connection, this.traffic.getUser(), n);
+      this.traffic.packed(n / j, m);
+      this.framePointer += n;
+      paramInt1 += m;
+      paramInt2 -= m;
+    }
+  }
+
+  private void writeFrame()
+    throws IOException
+  {
+    pin();
+    try {
+      writeFramePinned();
+    } finally {
+      this.guard.unpin();
+    }
+  }
+
+  // Write the frame out; it stays leased for the next packets until release()
+  private void writeFramePinned()
+    throws IOException
+  {
+    if (this.framePointer != 0) {
+      this.out.write(this.frame, 0, this.framePointer);
+      this.framePointer = 0;
+    }
+  }
+
+  private void releaseFrame()
+  {
+    if (this.frame != null) {
+      BufferPool.get().release(this.frame);
+      this.frame = null;
+    }
+  }
+
+  private void pin()
+    throws IOException
+  {
+    if (!this.guard.pin()) {
+      throw new IOException("Stream closed");
     }
   }
-}
\ No newline at end of file
+}
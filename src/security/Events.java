@@ -0,0 +1,91 @@
+package security;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder events for the handshake and packet pipeline. All are disabled unless a recording
+// turns them on, and every call site checks shouldCommit() before filling in fields, so when off the
+// JIT reduces them to nothing. Enable with enable(recording) or a .jfc naming security.* events.
+public final class Events {
+    private Events() {
+    }
+
+    public static void enable(Recording recording) {
+        recording.enable(HandshakePhase.class);
+        recording.enable(Pack.class);
+        recording.enable(Unpack.class);
+        recording.enable(Xor.class);
+        recording.enable(Flush.class);
+    }
+
+    @Category("Simplified SSL")
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class ConnectionEvent extends Event {
+        @Label("Connection")
+        String connection;
+
+        @Label("User")
+        String user;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        // Commit with the given fields if the event is enabled and over its threshold
+        void complete(String connection, String user, long bytes) {
+            if (shouldCommit()) {
+                this.connection = connection;
+                this.user = user;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("security.HandshakePhase")
+    @Label("Handshake Phase")
+    @Description("One step of a server handshake: reading the greeting, an RSA decrypt, the user lookup or a resumption")
+    static class HandshakePhase extends ConnectionEvent {
+        @Label("Phase")
+        String phase;
+
+        void complete(String phase, String connection, String user, long bytes) {
+            if (shouldCommit()) {
+                this.phase = phase;
+                super.complete(connection, user, bytes);
+            }
+        }
+    }
+
+    @Name("security.Pack")
+    @Label("Hash Pack")
+    @Description("A batch of plaintext packed into Hash packets")
+    static class Pack extends ConnectionEvent {
+    }
+
+    @Name("security.Unpack")
+    @Label("Hash Unpack")
+    @Description("A batch of Hash packets verified and unpacked")
+    static class Unpack extends ConnectionEvent {
+    }
+
+    @Name("security.Xor")
+    @Label("One-Time Key XOR")
+    @Description("A batch of packets encrypted or decrypted with the one-time key")
+    static class Xor extends ConnectionEvent {
+    }
+
+    @Name("security.Flush")
+    @Label("Crypto Stream Flush")
+    @Description("A CryptoOutputStream flush: pending data packed and written to the socket")
+    static class Flush extends ConnectionEvent {
+    }
+}
@@ -1,27 +1,86 @@
 package security;
 
 import java.io.PrintStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
 
 public class Hash {
+    // Record formats: the original one-byte length, and a two-byte big-endian length for records up to 64 KB
+    public static final int FORMAT_LEGACY = 1;
+    public static final int FORMAT_EXTENDED = 2;
+
     private int dataBytes;
     private int checkBytes;
     private byte pattern;
     private int k;
+    private int format;
+    private IntegrityCodec codec;
 
     public Hash(int dataBytes, int checkBytes, byte pattern, int k) {
+        this(dataBytes, checkBytes, pattern, k, FORMAT_LEGACY);
+    }
+
+    public Hash(int dataBytes, int checkBytes, byte pattern, int k, int format) {
+        this(dataBytes, checkBytes, pattern, k, format, new IntegrityCodec.Legacy(pattern, k, checkBytes));
+    }
+
+    public Hash(int dataBytes, int checkBytes, byte pattern, int k, int format, IntegrityCodec codec) {
+        if (format != FORMAT_LEGACY && format != FORMAT_EXTENDED) {
+            throw new IllegalArgumentException("Unknown record format " + format);
+        }
+        checkDataBytes(dataBytes, format);
         this.dataBytes = dataBytes;
         this.checkBytes = checkBytes;
         this.pattern = pattern;
         this.k = k;
+        this.format = format;
+        this.codec = codec;
+    }
+
+    // Hash from the <prefix>ndatabytes, ncheckbytes, pattern and k entries of a users.txt or client file, plus the
+    // optional <prefix>format (1 or 2) and <prefix>integrity (legacy, crc32c, adler32 or none); both ends must agree
+    public static Hash load(Properties properties, String prefix) {
+        int dataBytes = Integer.parseInt(properties.getProperty(prefix + "ndatabytes"));
+        int checkBytes = Integer.parseInt(properties.getProperty(prefix + "ncheckbytes"));
+        byte pattern = (byte) Integer.parseInt(properties.getProperty(prefix + "pattern"));
+        int k = Integer.parseInt(properties.getProperty(prefix + "k"));
+        int format = Integer.parseInt(properties.getProperty(prefix + "format", String.valueOf(FORMAT_LEGACY)));
+        IntegrityCodec codec = IntegrityCodec.forName(properties.getProperty(prefix + "integrity", "legacy"), pattern, k, checkBytes);
+        return new Hash(dataBytes, checkBytes, pattern, k, format, codec);
     }
 
     public int getNumberOfDataBytes() {
         return this.dataBytes;
     }
 
+    public int getNumberOfCheckBytes() {
+        return this.checkBytes;
+    }
+
+    public byte getPattern() {
+        return this.pattern;
+    }
+
+    public int getK() {
+        return this.k;
+    }
+
+    public int getFormat() {
+        return this.format;
+    }
+
+    public IntegrityCodec getIntegrityCodec() {
+        return this.codec;
+    }
+
     public int getPacketSize() {
-        return this.dataBytes + this.checkBytes + 1;
+        return this.format + this.dataBytes + this.checkBytes;
+    }
+
+    // Number of bytes pack() produces for length bytes of data
+    public int getPackedSize(int length) {
+        return packedSize(length, this.dataBytes, this.checkBytes, this.format);
     }
 
     public static void main(String[] args) throws Exception {
@@ -45,101 +104,222 @@ public class Hash {
     }
 
     public byte[] pack(byte[] data) {
-        return pack(data, this.dataBytes, this.checkBytes, this.pattern, this.k);
+        byte[] packedData = new byte[getPackedSize(data.length)];
+        pack(data, 0, data.length, packedData, 0);
+        return packedData;
     }
 
-    public static byte[] pack(byte[] data, int dataBytes, int checkBytes, byte pattern, int k) {
-        if (dataBytes > 256) {
-            throw new RuntimeException("DataBytes MAX Size is 255.");
+    // Pack len bytes of data starting at off into dst at dstOff, returning the number of bytes written
+    public int pack(byte[] data, int off, int len, byte[] dst, int dstOff) {
+        return pack(data, off, len, dst, dstOff, this.dataBytes, this.checkBytes, this.format, this.codec);
+    }
+
+    // Pack len bytes of data starting at off into dst at its position, advancing the position
+    public int pack(byte[] data, int off, int len, ByteBuffer dst) {
+        int size = getPackedSize(len);
+        if (dst.remaining() < size) {
+            throw new IndexOutOfBoundsException("Packet buffer too small");
         }
+        if (dst.hasArray()) {
+            pack(data, off, len, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + size);
+            return size;
+        }
+        int numPackets = size / getPacketSize();
+        for (int packetIndex = 0; packetIndex < numPackets; packetIndex++) {
+            int n = dataSize(packetIndex, len, this.dataBytes);
+            if (this.format == FORMAT_EXTENDED) {
+                dst.put((byte) (n >>> 8));
+            }
+            dst.put((byte) n);
+            dst.put(data, off, n);
+            for (int i = n; i < this.dataBytes; i++) {
+                dst.put((byte) 0);
+            }
+            long checksum = this.codec.checksum(data, off, n);
+            for (int i = 0; i < this.checkBytes; i++) {
+                dst.put(checkByte(checksum, i, this.checkBytes));
+            }
+            off += n;
+        }
+        return size;
+    }
 
-        int length = data.length;
-        int packetSize = dataBytes + checkBytes + 1;
-        int numPackets = length % dataBytes == 0 ? length / dataBytes : length / dataBytes + 1;
+    public static byte[] pack(byte[] data, int dataBytes, int checkBytes, byte pattern, int k) {
+        checkDataBytes(dataBytes, FORMAT_LEGACY);
+        byte[] packedData = new byte[packedSize(data.length, dataBytes, checkBytes, FORMAT_LEGACY)];
+        pack(data, 0, data.length, packedData, 0, dataBytes, checkBytes, FORMAT_LEGACY, new IntegrityCodec.Legacy(pattern, k, checkBytes));
+        return packedData;
+    }
 
-        byte[] packedData = new byte[numPackets * packetSize];
-        int dataIndex = 0;
+    // format is also the number of length bytes at the start of each packet
+    private static int pack(byte[] data, int off, int len, byte[] dst, int dstOff,
+                            int dataBytes, int checkBytes, int format, IntegrityCodec codec) {
+        int packetSize = format + dataBytes + checkBytes;
+        int numPackets = numPackets(len, dataBytes);
 
         for (int packetIndex = 0; packetIndex < numPackets; packetIndex++) {
-            byte dataSize = (byte) ((packetIndex + 1) * dataBytes > length ? length % dataBytes : dataBytes);
-            packedData[packetIndex * packetSize] = dataSize;
-
-            BigInteger checksum = BigInteger.ZERO;
-
-            for (int i = 0; i < dataSize; i++) {
-                byte b = data[dataIndex++];
-                checksum = checksum.add(BigInteger.valueOf((pattern & b) * k));
-                packedData[packetIndex * packetSize + i + 1] = b;
+            int base = dstOff + packetIndex * packetSize;
+            int n = dataSize(packetIndex, len, dataBytes);
+            if (format == FORMAT_EXTENDED) {
+                dst[base] = (byte) (n >>> 8);
             }
+            dst[base + format - 1] = (byte) n;
+            int data0 = base + format;
+            System.arraycopy(data, off, dst, data0, n);
+            // The caller's buffer may be dirty, so padding is cleared explicitly
+            Arrays.fill(dst, data0 + n, data0 + dataBytes, (byte) 0);
 
-            checksum = checksum.mod(BigInteger.valueOf((int) Math.pow(2.0, 8 * checkBytes)));
-            byte checksumSize = (byte) checksum.toByteArray().length;
-
+            long checksum = codec.checksum(data, off, n);
             for (int i = 0; i < checkBytes; i++) {
-                byte checksumByte;
-                if (checkBytes - i > checksumSize) {
-                    checksumByte = 0;
-                } else {
-                    checksumByte = checksum.toByteArray()[i - (checkBytes - checksumSize)];
-                }
-                packedData[packetIndex * packetSize + dataBytes + i + 1] = checksumByte;
+                dst[data0 + dataBytes + i] = checkByte(checksum, i, checkBytes);
             }
+            off += n;
         }
-        return packedData;
+        return numPackets * packetSize;
     }
 
     public byte[] unpack(byte[] packedData) throws Exception {
-        return unpack(packedData, this.dataBytes, this.checkBytes, this.pattern, this.k);
+        if (packedData.length % getPacketSize() != 0) {
+            throw new Exception("Wrong Packet Size !!!");
+        }
+        byte[] unpackedData = new byte[unpackedSize(packedData, 0, packedData.length, this.dataBytes, this.checkBytes, this.format)];
+        unpack(packedData, 0, packedData.length, unpackedData, 0);
+        return unpackedData;
     }
 
-    public static byte[] unpack(byte[] packedData, int dataBytes, int checkBytes, byte pattern, int k) throws Exception {
-        if (dataBytes > 256) {
-            throw new RuntimeException("DataBytes MAX Size is 255");
+    // Unpack len bytes of packets starting at off into dst at dstOff, returning the number of data bytes written.
+    // dst may be packedData itself as long as dstOff <= off.
+    public int unpack(byte[] packedData, int off, int len, byte[] dst, int dstOff) throws Exception {
+        return unpack(packedData, off, len, dst, dstOff, this.dataBytes, this.checkBytes, this.format, this.codec);
+    }
+
+    // Unpack every packet remaining in src into dst, advancing both positions
+    public int unpack(ByteBuffer src, ByteBuffer dst) throws Exception {
+        int packetSize = getPacketSize();
+        int length = src.remaining();
+        if (length % packetSize != 0) {
+            throw new Exception("Wrong Packet Size !!!");
         }
+        if (src.hasArray() && dst.hasArray()) {
+            if (dst.remaining() < unpackedSize(src.array(), src.arrayOffset() + src.position(), length, this.dataBytes, this.checkBytes, this.format)) {
+                throw new IndexOutOfBoundsException("Data buffer too small");
+            }
+            int n = unpack(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.position() + length);
+            dst.position(dst.position() + n);
+            return n;
+        }
+        int total = 0;
+        while (src.hasRemaining()) {
+            int base = src.position();
+            int dataSize = src.get(base + this.format - 1) & 0xFF;
+            if (this.format == FORMAT_EXTENDED) {
+                dataSize |= (src.get(base) & 0xFF) << 8;
+            }
+            if (dataSize > this.dataBytes) {
+                throw new Exception("Wrong Packet Size !!!");
+            }
+            int data0 = base + this.format;
+            long checksum = this.codec.checksum(src, data0, dataSize);
+            for (int i = 0; i < this.checkBytes; i++) {
+                if (src.get(data0 + this.dataBytes + i) != checkByte(checksum, i, this.checkBytes)) {
+                    throw new Exception("Checksum ERROR !!!");
+                }
+            }
+            if (dst.remaining() < dataSize) {
+                throw new IndexOutOfBoundsException("Data buffer too small");
+            }
+            for (int i = 0; i < dataSize; i++) {
+                dst.put(src.get(data0 + i));
+            }
+            src.position(base + packetSize);
+            total += dataSize;
+        }
+        return total;
+    }
+
+    public static byte[] unpack(byte[] packedData, int dataBytes, int checkBytes, byte pattern, int k) throws Exception {
+        checkDataBytes(dataBytes, FORMAT_LEGACY);
 
         int length = packedData.length;
-        int packetSize = 1 + dataBytes + checkBytes;
+        if (length % (1 + dataBytes + checkBytes) != 0) {
+            throw new Exception("Wrong Packet Size !!!");
+        }
 
-        if (length % packetSize != 0) {
+        byte[] unpackedData = new byte[unpackedSize(packedData, 0, length, dataBytes, checkBytes, FORMAT_LEGACY)];
+        unpack(packedData, 0, length, unpackedData, 0, dataBytes, checkBytes, FORMAT_LEGACY, new IntegrityCodec.Legacy(pattern, k, checkBytes));
+        return unpackedData;
+    }
+
+    private static int unpack(byte[] packedData, int off, int len, byte[] dst, int dstOff,
+                              int dataBytes, int checkBytes, int format, IntegrityCodec codec) throws Exception {
+        int packetSize = format + dataBytes + checkBytes;
+        if (len % packetSize != 0) {
             throw new Exception("Wrong Packet Size !!!");
         }
 
-        int numPackets = length / packetSize;
-        int expectedLength = 0;
+        int unpackedIndex = dstOff;
+        for (int base = off; base < off + len; base += packetSize) {
+            int dataSize = readDataSize(packedData, base, dataBytes, format);
+            int data0 = base + format;
 
-        for (int packetIndex = 0; packetIndex < numPackets; packetIndex++) {
-            expectedLength += packedData[packetIndex * packetSize];
+            long checksum = codec.checksum(packedData, data0, dataSize);
+            for (int i = 0; i < checkBytes; i++) {
+                if (packedData[data0 + dataBytes + i] != checkByte(checksum, i, checkBytes)) {
+                    throw new Exception("Checksum ERROR !!!");
+                }
+            }
+
+            System.arraycopy(packedData, data0, dst, unpackedIndex, dataSize);
+            unpackedIndex += dataSize;
         }
+        return unpackedIndex - dstOff;
+    }
 
-        byte[] unpackedData = new byte[expectedLength];
-        int unpackedIndex = 0;
+    // The legacy length byte holds 0..255; the extended format's two bytes hold 0..65535
+    private static void checkDataBytes(int dataBytes, int format) {
+        if (dataBytes < 1 || dataBytes > (format == FORMAT_EXTENDED ? 0xFFFF : 0xFF)) {
+            throw new IllegalArgumentException("DataBytes MAX Size is " + (format == FORMAT_EXTENDED ? 0xFFFF : 0xFF));
+        }
+    }
 
-        for (int packetIndex = 0; packetIndex < numPackets; packetIndex++) {
-            int dataSize = packedData[packetIndex * packetSize];
-            BigInteger checksum = BigInteger.ZERO;
-            int dataIndex = packetIndex * packetSize + 1;
+    private static int numPackets(int length, int dataBytes) {
+        return length % dataBytes == 0 ? length / dataBytes : length / dataBytes + 1;
+    }
 
-            for (int i = 0; i < dataSize; i++) {
-                byte b = packedData[dataIndex++];
-                checksum = checksum.add(BigInteger.valueOf((b & pattern) * k));
-                unpackedData[unpackedIndex++] = b;
-            }
+    private static int packedSize(int length, int dataBytes, int checkBytes, int format) {
+        return numPackets(length, dataBytes) * (format + dataBytes + checkBytes);
+    }
 
-            if (dataSize < dataBytes) {
-                dataIndex += dataBytes - dataSize;
-            }
+    private static int unpackedSize(byte[] packedData, int off, int len, int dataBytes, int checkBytes, int format) throws Exception {
+        int packetSize = format + dataBytes + checkBytes;
+        int expectedLength = 0;
+        for (int base = off; base < off + len; base += packetSize) {
+            expectedLength += readDataSize(packedData, base, dataBytes, format);
+        }
+        return expectedLength;
+    }
 
-            checksum = checksum.mod(BigInteger.valueOf((int) Math.pow(2.0, 8 * checkBytes)));
-            byte checksumSize = (byte) checksum.toByteArray().length;
+    private static int dataSize(int packetIndex, int length, int dataBytes) {
+        return (packetIndex + 1) * dataBytes > length ? length % dataBytes : dataBytes;
+    }
 
-            for (int i = checkBytes - checksumSize; i < checkBytes; i++) {
-                int expectedChecksum = packedData[packetIndex * packetSize + dataBytes + i + 1];
-                int actualChecksum = checksum.toByteArray()[checksumSize - checkBytes + i];
-                if (expectedChecksum != actualChecksum) {
-                    throw new Exception("Checksum ERROR !!!");
-                }
-            }
+    // Lengths are unsigned: the original code read the length byte as signed, so packets over 127 bytes never round-tripped
+    private static int readDataSize(byte[] packedData, int base, int dataBytes, int format) throws Exception {
+        int dataSize = packedData[base + format - 1] & 0xFF;
+        if (format == FORMAT_EXTENDED) {
+            dataSize |= (packedData[base] & 0xFF) << 8;
         }
-        return unpackedData;
+        if (dataSize > dataBytes) {
+            throw new Exception("Wrong Packet Size !!!");
+        }
+        return dataSize;
+    }
+
+    // i-th of the checkBytes big-endian bytes of the (non-negative) checksum
+    private static byte checkByte(long checksum, int i, int checkBytes) {
+        int shift = 8 * (checkBytes - 1 - i);
+        return shift >= 64 ? 0 : (byte) (checksum >>> shift);
     }
 }
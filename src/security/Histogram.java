@@ -0,0 +1,107 @@
+package security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of non-negative longs in the style of HdrHistogram: each power of two is split into
+// 64 equal buckets, so any recorded value is reported within 1/64 (about 1.6%) of what was recorded,
+// from one nanosecond up to Long.MAX_VALUE, in a fixed 30 KB of counters. Recording is lock-free.
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LENGTH = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(indexFor(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    public void recordNanos(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Add everything recorded in other to this histogram
+    public void add(Histogram other) {
+        for (int i = 0; i < LENGTH; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                this.counts.addAndGet(i, n);
+            }
+        }
+        this.count.add(other.count.sum());
+        this.sum.add(other.sum.sum());
+        this.max.accumulate(other.max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < LENGTH; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.reset();
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    // Smallest recorded value that percentile percent of the values are at or below, to within a bucket
+    public long getValueAtPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // p50/p99/p999/max of values recorded in nanoseconds, in the given unit
+    public String toString(TimeUnit unit) {
+        double scale = unit.toNanos(1);
+        String name = unit == TimeUnit.MICROSECONDS ? "us" : unit == TimeUnit.MILLISECONDS ? "ms" : unit == TimeUnit.NANOSECONDS ? "ns" : unit.toString();
+        return String.format("p50=%.1f%s p99=%.1f%s p999=%.1f%s max=%.1f%s",
+                getValueAtPercentile(50) / scale, name, getValueAtPercentile(99) / scale, name,
+                getValueAtPercentile(99.9) / scale, name, getMax() / scale, name);
+    }
+
+    // Values below 2 * SUB_BUCKETS get a bucket each; above that, bucket width doubles with every power of two
+    private static int indexFor(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,271 @@
+package security;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Process-wide counters and latency histograms for handshakes, RSA and the packet streams.
+// Everything is a LongAdder or a Histogram, so recording never takes a lock; the streams record once
+// per batch of packets rather than per packet.
+public class Metrics implements MetricsMBean {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final LongAdder handshakesStarted = new LongAdder();
+    private final LongAdder handshakesCompleted = new LongAdder();
+    private final LongAdder handshakesFailed = new LongAdder();
+    private final LongAdder resumptions = new LongAdder();
+    private final Histogram handshakeTime = new Histogram();
+    private final Histogram rsaTime = new Histogram();
+    private final LongAdder checksumErrors = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final Traffic total = new Traffic(null);
+    private final ConcurrentMap<String, Traffic> users = new ConcurrentHashMap<>();
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    // Make the metrics visible to jconsole and other JMX clients; safe to call more than once
+    public static synchronized void register() {
+        try {
+            ObjectName name = new ObjectName("security:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void handshakeStarted() {
+        this.handshakesStarted.increment();
+    }
+
+    public void handshakeCompleted(long startNanos, boolean resumed) {
+        this.handshakeTime.recordNanos(startNanos);
+        this.handshakesCompleted.increment();
+        if (resumed) {
+            this.resumptions.increment();
+        }
+    }
+
+    public void handshakeFailed() {
+        this.handshakesFailed.increment();
+    }
+
+    public void rsa(long startNanos) {
+        this.rsaTime.recordNanos(startNanos);
+    }
+
+    public void checksumError() {
+        this.checksumErrors.increment();
+    }
+
+    public void connectionOpened() {
+        this.activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    // Traffic counters for one user, which also feed the totals; null gives the totals alone
+    public Traffic traffic(String user) {
+        if (user == null) {
+            return this.total;
+        }
+        Traffic traffic = this.users.get(user);
+        if (traffic == null) {
+            traffic = this.users.computeIfAbsent(user, Traffic::new);
+        }
+        return traffic;
+    }
+
+    public Histogram getHandshakeTime() {
+        return this.handshakeTime;
+    }
+
+    public Histogram getRsaTime() {
+        return this.rsaTime;
+    }
+
+    @Override
+    public long getHandshakesStarted() {
+        return this.handshakesStarted.sum();
+    }
+
+    @Override
+    public long getHandshakesCompleted() {
+        return this.handshakesCompleted.sum();
+    }
+
+    @Override
+    public long getHandshakesFailed() {
+        return this.handshakesFailed.sum();
+    }
+
+    @Override
+    public long getResumptions() {
+        return this.resumptions.sum();
+    }
+
+    @Override
+    public double getHandshakeTimeP50() {
+        return this.handshakeTime.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getHandshakeTimeP99() {
+        return this.handshakeTime.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getHandshakeTimeP999() {
+        return this.handshakeTime.getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public long getRsaOperations() {
+        return this.rsaTime.getCount();
+    }
+
+    @Override
+    public double getRsaTimeP50() {
+        return this.rsaTime.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRsaTimeP99() {
+        return this.rsaTime.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getPacketsPacked() {
+        return this.total.packetsPacked.sum();
+    }
+
+    @Override
+    public long getBytesPacked() {
+        return this.total.bytesPacked.sum();
+    }
+
+    @Override
+    public long getPacketsUnpacked() {
+        return this.total.packetsUnpacked.sum();
+    }
+
+    @Override
+    public long getBytesUnpacked() {
+        return this.total.bytesUnpacked.sum();
+    }
+
+    @Override
+    public long getChecksumErrors() {
+        return this.checksumErrors.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return this.activeConnections.sum();
+    }
+
+    @Override
+    public String[] getUserTraffic() {
+        return this.users.values().stream().map(Traffic::toString).sorted().toArray(String[]::new);
+    }
+
+    @Override
+    public long getPoolLeasedBytes() {
+        return BufferPool.get().getLeasedBytes();
+    }
+
+    @Override
+    public long getPoolIdleBytes() {
+        return BufferPool.get().getIdleBytes();
+    }
+
+    @Override
+    public long getPoolLeases() {
+        return BufferPool.get().getLeases();
+    }
+
+    @Override
+    public long getPoolAllocations() {
+        return BufferPool.get().getAllocations();
+    }
+
+    // Zero everything except active connections and pool occupancy, which would otherwise go negative
+    @Override
+    public void reset() {
+        this.handshakesStarted.reset();
+        this.handshakesCompleted.reset();
+        this.handshakesFailed.reset();
+        this.resumptions.reset();
+        this.handshakeTime.reset();
+        this.rsaTime.reset();
+        this.checksumErrors.reset();
+        this.total.reset();
+        for (Map.Entry<String, Traffic> entry : this.users.entrySet()) {
+            entry.getValue().reset();
+        }
+        BufferPool.get().resetCounters();
+    }
+
+    public String toString() {
+        return "handshakes=" + getHandshakesCompleted() + "/" + getHandshakesStarted() + " failed=" + getHandshakesFailed()
+                + " resumed=" + getResumptions() + " handshake " + this.handshakeTime.toString(TimeUnit.MILLISECONDS)
+                + " rsa=" + getRsaOperations() + " " + this.rsaTime.toString(TimeUnit.MICROSECONDS)
+                + " " + this.total + " checksum_errors=" + getChecksumErrors() + " active=" + getActiveConnections()
+                + " pool " + BufferPool.get();
+    }
+
+    // Packets and plaintext bytes through the streams of one user's connections
+    public class Traffic {
+        private final String user;
+        private final LongAdder packetsPacked = new LongAdder();
+        private final LongAdder bytesPacked = new LongAdder();
+        private final LongAdder packetsUnpacked = new LongAdder();
+        private final LongAdder bytesUnpacked = new LongAdder();
+
+        Traffic(String user) {
+            this.user = user;
+        }
+
+        // Null for the totals
+        public String getUser() {
+            return this.user;
+        }
+
+        public void packed(int packets, int bytes) {
+            this.packetsPacked.add(packets);
+            this.bytesPacked.add(bytes);
+            if (this.user != null) {
+                total.packed(packets, bytes);
+            }
+        }
+
+        public void unpacked(int packets, int bytes) {
+            this.packetsUnpacked.add(packets);
+            this.bytesUnpacked.add(bytes);
+            if (this.user != null) {
+                total.unpacked(packets, bytes);
+            }
+        }
+
+        void reset() {
+            this.packetsPacked.reset();
+            this.bytesPacked.reset();
+            this.packetsUnpacked.reset();
+            this.bytesUnpacked.reset();
+        }
+
+        public String toString() {
+            return (this.user != null ? this.user + " " : "") + "packed=" + this.bytesPacked.sum() + " unpacked=" + this.bytesUnpacked.sum();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package security;
+
+// Management view of Metrics, registered as security:type=Metrics. Latencies are in microseconds.
+public interface MetricsMBean {
+    long getHandshakesStarted();
+
+    long getHandshakesCompleted();
+
+    long getHandshakesFailed();
+
+    long getResumptions();
+
+    double getHandshakeTimeP50();
+
+    double getHandshakeTimeP99();
+
+    double getHandshakeTimeP999();
+
+    long getRsaOperations();
+
+    double getRsaTimeP50();
+
+    double getRsaTimeP99();
+
+    long getPacketsPacked();
+
+    long getBytesPacked();
+
+    long getPacketsUnpacked();
+
+    long getBytesUnpacked();
+
+    long getChecksumErrors();
+
+    long getActiveConnections();
+
+    // One "<user> packed=<bytes> unpacked=<bytes>" line per user seen since the last reset
+    String[] getUserTraffic();
+
+    // BufferPool occupancy: bytes out on lease and idle in the shared pool, leases, and leases that had to allocate
+    long getPoolLeasedBytes();
+
+    long getPoolIdleBytes();
+
+    long getPoolLeases();
+
+    long getPoolAllocations();
+
+    void reset();
+}
@@ -3,9 +3,20 @@ package security;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Objects;
 import java.util.Random;
 
 public class OneTimeKey {
+    // View of a byte[] as native-order longs, used by the word-at-a-time XOR loop
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // One thread-safe generator shared by every newKey(int) call instead of a new Random each time
+    private static final Random RANDOM = new SecureRandom();
+
     // Main method to demonstrate one-time key encryption and decryption
     public static void main(String[] args) throws Exception {
         // Check if command line arguments are provided correctly
@@ -31,7 +42,29 @@ public class OneTimeKey {
 
     // Method to generate a new one-time key
     public static byte[] newKey(int length) {
-        return newKey(new Random(), length);
+        return newKey(RANDOM, length);
+    }
+
+    // Key for a connection using hash: one packet long, or as long as the server's public key can encrypt
+    // when that is shorter (large records), in which case it repeats within each packet
+    public static byte[] newKey(Hash hash, RSA.Key serverKey) {
+        return newKey(keyLength(hash, serverKey));
+    }
+
+    // The key newKey(hash, serverKey) made, from its RSA decryption, which drops any leading zero bytes
+    public static byte[] restoreKey(byte[] decrypted, Hash hash, RSA.Key serverKey) {
+        int length = keyLength(hash, serverKey);
+        if (decrypted.length >= length) {
+            return decrypted;
+        }
+        byte[] key = new byte[length];
+        System.arraycopy(decrypted, 0, key, length - decrypted.length, decrypted.length);
+        return key;
+    }
+
+    private static int keyLength(Hash hash, RSA.Key serverKey) {
+        int limit = (serverKey.getN().bitLength() - 1) / 8;
+        return Math.min(hash.getPacketSize(), limit);
     }
 
     // Method to generate a new one-time key using a specific random number generator
@@ -49,26 +82,73 @@ public class OneTimeKey {
 
     // Method to perform bitwise XOR operation between two byte arrays
     public static byte[] xor(byte[] data, byte[] key) {
-        // Check if the length of data is a multiple of the length of the key
-        if (data.length % key.length != 0) {
-            throw new RuntimeException("ERROR in Length of one-time key !!!");
-        }
         // Create a new byte array to store the result
         byte[] result = new byte[data.length];
-        // Copy data to the result array
-        System.arraycopy(data, 0, result, 0, data.length);
+        xor(data, 0, result, 0, data.length, key, 0);
+        return result;
+    }
+
+    // Method to XOR len bytes of data in place, starting keyOff bytes into the key; returns the next key offset
+    public static int xor(byte[] data, int off, int len, byte[] key, int keyOff) {
+        return xor(data, off, data, off, len, key, keyOff);
+    }
+
+    // Method to XOR whole packets in place, the key starting over with every packet. When the key length
+    // divides the packet size that is one pass over the run; otherwise each packet is done on its own.
+    public static void xorPackets(byte[] data, int off, int len, byte[] key, int packetSize) {
+        if (packetSize % key.length == 0) {
+            xor(data, off, len, key, 0);
+            return;
+        }
+        for (int base = off; base < off + len; base += packetSize) {
+            xor(data, base, Math.min(packetSize, off + len - base), key, 0);
+        }
+    }
+
+    // Method to XOR len bytes of src into dst, starting keyOff bytes into the key; returns the next key offset.
+    // The key rolls over at its end, so len does not have to be a multiple of the key length.
+    public static int xor(byte[] src, int srcOff, byte[] dst, int dstOff, int len, byte[] key, int keyOff) {
+        int keyLength = key.length;
+        if (keyLength == 0) {
+            throw new RuntimeException("ERROR in Length of one-time key !!!");
+        }
+        Objects.checkFromIndexSize(srcOff, len, src.length);
+        Objects.checkFromIndexSize(dstOff, len, dst.length);
+        keyOff = Math.floorMod(keyOff, keyLength);
 
         int index = 0;
 
-        // Iterate over data segments, each equal to the length of the key
-        for (int i = 0; i < data.length / key.length; i++) {
-            // Iterate over each byte in the key
-            for (int j = 0; j < key.length; j++) {
-                // Perform XOR operation between corresponding bytes of data and key
-                result[index] = (byte) (result[index] ^ key[j]);
-                index++;
+        // Bring the key back to its first byte
+        if (keyOff != 0) {
+            int lead = Math.min(len, keyLength - keyOff);
+            for (; index < lead; index++) {
+                dst[dstOff + index] = (byte) (src[srcOff + index] ^ key[keyOff + index]);
             }
+            keyOff = (keyOff + lead) % keyLength;
         }
-        return result;
+
+        // Whole key lengths, eight bytes at a time
+        if (keyOff == 0 && keyLength >= Long.BYTES) {
+            int words = keyLength & -Long.BYTES;
+            for (; index + keyLength <= len; index += keyLength) {
+                int j = 0;
+                for (; j < words; j += Long.BYTES) {
+                    long word = (long) LONGS.get(src, srcOff + index + j) ^ (long) LONGS.get(key, j);
+                    LONGS.set(dst, dstOff + index + j, word);
+                }
+                for (; j < keyLength; j++) {
+                    dst[dstOff + index + j] = (byte) (src[srcOff + index + j] ^ key[j]);
+                }
+            }
+        }
+
+        // Whatever is left, one byte at a time
+        for (; index < len; index++) {
+            dst[dstOff + index] = (byte) (src[srcOff + index] ^ key[keyOff]);
+            if (++keyOff == keyLength) {
+                keyOff = 0;
+            }
+        }
+        return keyOff;
     }
 }
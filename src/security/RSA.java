@@ -2,9 +2,25 @@ package security;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 
 public class RSA {
+    // Public exponent used whenever it is coprime to phi(n), which the prime search guarantees
+    private static final BigInteger E = BigInteger.valueOf(65537);
+
+    // For key material drawn outside the prime searches, which each bring their own
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Odd primes below 2048; candidates divisible by any of them never reach Miller-Rabin
+    private static final int[] SMALL_PRIMES = IntStream.range(3, 2048).filter(i -> BigInteger.valueOf(i).isProbablePrime(50)).toArray();
 
     // Encryption method overloaded for String input
     public static byte[] cipher(String input, Key key) throws Exception {
@@ -13,10 +29,12 @@ public class RSA {
 
     // Encryption method
     public static byte[] cipher(byte[] input, Key key) throws Exception {
+        long start = System.nanoTime();
         byte[] paddedInput = new byte[input.length + 1];
         paddedInput[0] = 0;
         System.arraycopy(input, 0, paddedInput, 1, input.length);
-        BigInteger encrypted = new BigInteger(paddedInput).modPow(key.getKey(), key.getN());
+        BigInteger encrypted = key.modPow(new BigInteger(paddedInput));
+        Metrics.get().rsa(start);
         if (encrypted.toByteArray()[0] != 0) {
             return encrypted.toByteArray();
         }
@@ -29,9 +47,93 @@ public class RSA {
     public static KeyPair generateKeys(BigInteger p, BigInteger q) {
         BigInteger n = p.multiply(q);
         BigInteger phiN = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
-        BigInteger e = relativePrime(phiN);
+        BigInteger e = phiN.gcd(E).equals(BigInteger.ONE) ? E : relativePrime(phiN);
         BigInteger d = e.modInverse(phiN);
-        return new KeyPair(new PrivateKey(d, n), new PublicKey(e, n));
+        return new KeyPair(new PrivateKey(d, n, p, q), new PublicKey(e, n));
+    }
+
+    // Generate a key pair from two primes of primeSize bits, each searched for on all cores
+    public static KeyPair generateKeys(int primeSize, int primeCertainty) {
+        BigInteger p = generatePrime(primeSize, primeCertainty);
+        BigInteger q;
+        do {
+            q = generatePrime(primeSize, primeCertainty);
+        } while (q.equals(p));
+        return generateKeys(p, q);
+    }
+
+    // Generate count key pairs, one per core at a time
+    public static KeyPair[] generateKeys(int count, int primeSize, int primeCertainty) {
+        return IntStream.range(0, count).parallel().mapToObj(i -> {
+            Random random = new SecureRandom();
+            BigInteger p = searchPrime(primeSize, primeCertainty, random, () -> false);
+            BigInteger q;
+            do {
+                q = searchPrime(primeSize, primeCertainty, random, () -> false);
+            } while (q.equals(p));
+            return generateKeys(p, q);
+        }).toArray(KeyPair[]::new);
+    }
+
+    // Race one prime search per core; the first probable prime found wins and the others give up
+    public static BigInteger generatePrime(int bitLength, int certainty) {
+        AtomicReference<BigInteger> found = new AtomicReference<>();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[Math.max(1, pool.getParallelism())];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = pool.submit(() -> {
+                BigInteger prime = searchPrime(bitLength, certainty, new SecureRandom(), () -> found.get() != null);
+                if (prime != null) {
+                    found.compareAndSet(null, prime);
+                }
+            });
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return found.get();
+    }
+
+    // Walk up from a random odd start, sieving with SMALL_PRIMES and only testing the survivors.
+    // Primes p with p = 1 mod 65537 are skipped so that E is always a valid public exponent.
+    // Returns null if stop says another search already succeeded.
+    private static BigInteger searchPrime(int bitLength, int certainty, Random random, BooleanSupplier stop) {
+        if (bitLength < 16) {
+            return new BigInteger(bitLength, certainty, random);
+        }
+        int[] residues = new int[SMALL_PRIMES.length];
+        while (!stop.getAsBoolean()) {
+            BigInteger start = new BigInteger(bitLength, random).setBit(bitLength - 1).setBit(0);
+            for (int i = 0; i < SMALL_PRIMES.length; i++) {
+                residues[i] = start.mod(BigInteger.valueOf(SMALL_PRIMES[i])).intValue();
+            }
+            int residueE = start.mod(E).intValue();
+            for (int delta = 0; delta < 20 * bitLength; delta += 2) {
+                if ((residueE + delta) % 65537 == 1 || divisible(residues, delta)) {
+                    continue;
+                }
+                if (stop.getAsBoolean()) {
+                    return null;
+                }
+                BigInteger candidate = start.add(BigInteger.valueOf(delta));
+                if (candidate.bitLength() != bitLength) {
+                    break;
+                }
+                if (candidate.isProbablePrime(certainty)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean divisible(int[] residues, int delta) {
+        for (int i = 0; i < residues.length; i++) {
+            if ((residues[i] + delta) % SMALL_PRIMES[i] == 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     // Main method
@@ -43,14 +145,15 @@ public class RSA {
                 System.out.println("java security.RSA -gen [ <text> ]");
                 System.out.println("   - generate private (KR) and public (KU) keys");
                 System.out.println("     and test them on <text> (optional)\n");
+                System.out.println("java security.RSA -bulk <count> [ <name prefix> ]");
+                System.out.println("   - generate <count> key pairs in {key,n} form, as KR/KU lines or");
+                System.out.println("     as <prefix><i>.private_key / <prefix><i>.public_key properties\n");
                 return;
             }
             if (args[0].equals("-gen") && args.length <= 2) {
                 int primeSize = Integer.parseInt(System.getProperty("prime_size", "256"));
                 int primeCertainty = Integer.parseInt(System.getProperty("prime_certainty", "5"));
-                BigInteger p = new BigInteger(primeSize, primeCertainty, new Random());
-                BigInteger q = new BigInteger(primeSize, primeCertainty, new Random());
-                KeyPair keyPair = generateKeys(p, q);
+                KeyPair keyPair = generateKeys(primeSize, primeCertainty);
                 System.out.println(keyPair);
                 if (args.length == 2) {
                     byte[] inputBytes = args[1].getBytes();
@@ -61,19 +164,34 @@ public class RSA {
                 }
                 return;
             }
+            if (args[0].equals("-bulk") && (args.length == 2 || args.length == 3)) {
+                int primeSize = Integer.parseInt(System.getProperty("prime_size", "256"));
+                int primeCertainty = Integer.parseInt(System.getProperty("prime_certainty", "5"));
+                KeyPair[] keyPairs = generateKeys(Integer.parseInt(args[1]), primeSize, primeCertainty);
+                for (int i = 0; i < keyPairs.length; i++) {
+                    String privateKey = "{" + keyPairs[i].getPrivateKey().getKey() + ',' + keyPairs[i].getPrivateKey().getN() + '}';
+                    if (args.length == 3) {
+                        System.out.println(args[2] + i + ".private_key=" + privateKey);
+                        System.out.println(args[2] + i + ".public_key=" + keyPairs[i].getPublicKey());
+                    } else {
+                        System.out.println("KR=" + privateKey);
+                        System.out.println("KU=" + keyPairs[i].getPublicKey());
+                    }
+                }
+                return;
+            }
         }
         System.out.println("java security.RSA -help");
     }
 
     // Find a number that is relatively prime to phiN
     private static BigInteger relativePrime(BigInteger phiN) {
-        Random random = new Random();
         int length = phiN.toByteArray().length;
         BigInteger one = BigInteger.ONE;
         BigInteger candidate;
         do {
             byte[] candidateBytes = new byte[length];
-            random.nextBytes(candidateBytes);
+            RANDOM.nextBytes(candidateBytes);
             candidate = new BigInteger(candidateBytes).abs();
             candidate = candidate.mod(phiN);
         } while (phiN.gcd(candidate).compareTo(one) != 0);
@@ -102,7 +220,12 @@ public class RSA {
             return n;
         }
 
-        // Read key from input stream
+        // Apply the key to a value: value^key mod n
+        protected BigInteger modPow(BigInteger value) {
+            return value.modPow(key, n);
+        }
+
+        // Read key from input stream, either {key,n} or a longer list that the subclass understands
         public void read(InputStream inputStream) throws IOException {
             StringBuilder keyBuilder = new StringBuilder();
             int byteRead;
@@ -119,28 +242,37 @@ public class RSA {
                         throw new IOException("Wrong Format");
                 }
             }
-            while ((byteRead = inputStream.read()) != ',') {
-                if (byteRead == -1) {
-                    throw new EOFException("Unexpected End of File");
-                }
-                keyBuilder.append((char) byteRead);
-            }
-            try {
-                key = new BigInteger(keyBuilder.toString());
-            } catch (NumberFormatException e) {
-                throw new IOException(e.toString());
-            }
-            keyBuilder.setLength(0);
+            List<BigInteger> values = new ArrayList<>();
             while ((byteRead = inputStream.read()) != '}') {
                 if (byteRead == -1) {
                     throw new EOFException("Unexpected End of File");
                 }
-                keyBuilder.append((char) byteRead);
+                if (byteRead == ',') {
+                    values.add(parse(keyBuilder));
+                } else {
+                    keyBuilder.append((char) byteRead);
+                }
             }
+            values.add(parse(keyBuilder));
+            setValues(values.toArray(new BigInteger[0]));
+        }
+
+        // Take the values read from a key file; a plain key has exactly {key,n}
+        protected void setValues(BigInteger[] values) throws IOException {
+            if (values.length != 2) {
+                throw new IOException("Wrong Format");
+            }
+            key = values[0];
+            n = values[1];
+        }
+
+        private static BigInteger parse(StringBuilder keyBuilder) throws IOException {
             try {
-                n = new BigInteger(keyBuilder.toString());
+                return new BigInteger(keyBuilder.toString());
             } catch (NumberFormatException e) {
                 throw new IOException(e.toString());
+            } finally {
+                keyBuilder.setLength(0);
             }
         }
 
@@ -170,8 +302,15 @@ public class RSA {
         }
     }
 
-    // Private key class
+    // Private key class; when p and q are known it keeps the Chinese Remainder Theorem form
+    // {d,n,p,q,dP,dQ,qInv} and does two half-size exponentiations instead of one full-size one
     public static class PrivateKey extends RSA.Key {
+        protected BigInteger p;
+        protected BigInteger q;
+        protected BigInteger dP;
+        protected BigInteger dQ;
+        protected BigInteger qInv;
+
         public PrivateKey(InputStream inputStream) throws IOException {
             read(inputStream);
         }
@@ -180,9 +319,59 @@ public class RSA {
             super(key, n);
         }
 
+        protected PrivateKey(BigInteger key, BigInteger n, BigInteger p, BigInteger q) {
+            super(key, n);
+            this.p = p;
+            this.q = q;
+            this.dP = key.mod(p.subtract(BigInteger.ONE));
+            this.dQ = key.mod(q.subtract(BigInteger.ONE));
+            this.qInv = q.modInverse(p);
+        }
+
         public PrivateKey(byte[] bytes) throws IOException {
             read(bytes);
         }
+
+        public boolean isCRT() {
+            return p != null;
+        }
+
+        protected BigInteger modPow(BigInteger value) {
+            if (p == null) {
+                return super.modPow(value);
+            }
+            BigInteger m1 = value.modPow(dP, p);
+            BigInteger m2 = value.modPow(dQ, q);
+            BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+            return m2.add(h.multiply(q));
+        }
+
+        protected void setValues(BigInteger[] values) throws IOException {
+            if (values.length == 2) {
+                super.setValues(values);
+                return;
+            }
+            if (values.length != 7) {
+                throw new IOException("Wrong Format");
+            }
+            key = values[0];
+            n = values[1];
+            p = values[2];
+            q = values[3];
+            dP = values[4];
+            dQ = values[5];
+            qInv = values[6];
+            if (!p.multiply(q).equals(n)) {
+                throw new IOException("Wrong Format");
+            }
+        }
+
+        public String toString() {
+            if (p == null) {
+                return super.toString();
+            }
+            return "{" + key + ',' + n + ',' + p + ',' + q + ',' + dP + ',' + dQ + ',' + qInv + '}';
+        }
     }
 
     // Key pair class
@@ -0,0 +1,482 @@
+package security;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+// Client connection on an AsynchronousSocketChannel, speaking the same greeting and Hash/OneTimeKey packet
+// framing as SSLSocket without tying up a thread per conversation. Every operation returns a CompletableFuture,
+// completed on a thread of the channel group, so one small group can drive thousands of connections.
+//
+// Any number of sends and receives may be outstanding on a connection at once. Sends go out in the order they
+// were made, each as its own run of packets; receives are served in the order they were made from the decrypted
+// data, and the channel is only read while a receive is waiting, so a slow consumer holds back the server rather
+// than buffering without bound. Buffers are leased from BufferPool while they hold bytes.
+public class SSLAsyncSocket implements Closeable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final AsynchronousSocketChannel channel;
+    private final byte[] key;
+    private final Hash hash;
+    private final Metrics.Traffic traffic = Metrics.get().traffic(null);
+    private final String connection;
+
+    // Guarded by writes: sends waiting for the one channel write in progress
+    private final ArrayDeque<Write> writes = new ArrayDeque<>();
+    private boolean writing;
+    private boolean writesClosed;
+
+    // Guarded by receives: receives in order, ciphertext not yet decrypted, and decrypted data not yet handed out
+    private final ArrayDeque<Receive> receives = new ArrayDeque<>();
+    private ByteBuffer inbound;
+    private ByteBuffer plain;
+    private boolean reading;
+    private boolean ended;
+    private IOException failure;
+
+    // Held while request() queues its receive and its send, so replies pair up with requests from any thread
+    private final Object requests = new Object();
+
+    private SSLAsyncSocket(AsynchronousSocketChannel channel, byte[] key, Hash hash, String connection) {
+        this.channel = channel;
+        this.key = key;
+        this.hash = hash;
+        this.connection = connection;
+    }
+
+    // Connect to address in group (null for the default group) and send the greeting made of the name, company
+    // and encrypted one-time key tokens, as SSLSocket does; the future completes once the greeting is sent
+    public static CompletableFuture<SSLAsyncSocket> connect(SocketAddress address, AsynchronousChannelGroup group, byte[] nameToken,
+            byte[] companyToken, byte[] encryptedKey, byte[] key, Hash hash) {
+        CompletableFuture<SSLAsyncSocket> future = new CompletableFuture<>();
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+            // Every send is a whole message written at once; with several in flight Nagle would hold the later ones back
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        SSLAsyncSocket socket = new SSLAsyncSocket(channel, key, hash, String.valueOf(address));
+        byte[][] tokens = { SSLSocket.greetingToken(nameToken), SSLSocket.greetingToken(companyToken), SSLSocket.greetingToken(encryptedKey) };
+        byte[] greeting = new byte[1 + tokens[0].length + tokens[1].length + tokens[2].length];
+        greeting[0] = '!';
+        int position = 1;
+        for (byte[] token : tokens) {
+            System.arraycopy(token, 0, greeting, position, token.length);
+            position += token.length;
+        }
+        channel.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                socket.enqueue(new Write(ByteBuffer.wrap(greeting), null)).whenComplete((sent, e) -> {
+                    if (e == null) {
+                        future.complete(socket);
+                    } else {
+                        socket.close();
+                        future.completeExceptionally(e);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                socket.close();
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public static CompletableFuture<SSLAsyncSocket> connect(String host, int port, AsynchronousChannelGroup group, byte[] nameToken,
+            byte[] companyToken, byte[] encryptedKey, byte[] key, Hash hash) {
+        return connect(new InetSocketAddress(host, port), group, nameToken, companyToken, encryptedKey, key, hash);
+    }
+
+    public Hash getHash() {
+        return this.hash;
+    }
+
+    // Pack and encrypt data[off..off+len); the future completes once it has all been written to the channel
+    public CompletableFuture<Void> send(byte[] data, int off, int len) {
+        return enqueue(pack(data, off, len));
+    }
+
+    public CompletableFuture<Void> send(byte[] data) {
+        return send(data, 0, data.length);
+    }
+
+    private Write pack(byte[] data, int off, int len) {
+        Objects.checkFromIndexSize(off, len, data.length);
+        int packetSize = this.hash.getPacketSize();
+        int size = this.hash.getPackedSize(len);
+        byte[] packets = BufferPool.get().lease(Math.max(1, size));
+        Events.Pack pack = new Events.Pack();
+        pack.begin();
+        this.hash.pack(data, off, len, packets, 0);
+        pack.complete(this.connection, this.traffic.getUser(), len);
+        Events.Xor xor = new Events.Xor();
+        xor.begin();
+        OneTimeKey.xorPackets(packets, 0, size, this.key, packetSize);
+        xor.complete(this.connection, this.traffic.getUser(), size);
+        this.traffic.packed(size / packetSize, len);
+        return new Write(ByteBuffer.wrap(packets, 0, size), packets);
+    }
+
+    // Whatever decrypted data comes next, at least one byte of it, or null at the end of the stream
+    public CompletableFuture<byte[]> receive() {
+        return receive(new Receive(-1));
+    }
+
+    // Exactly length bytes of decrypted data; fails with EOFException if the stream ends first
+    public CompletableFuture<byte[]> receive(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        return receive(new Receive(length));
+    }
+
+    // Send a request and receive a reply of replyLength bytes, for servers that answer every request in turn
+    public CompletableFuture<byte[]> request(byte[] data, int replyLength) {
+        if (replyLength < 0) {
+            throw new IllegalArgumentException("Negative length " + replyLength);
+        }
+        Write write = pack(data, 0, data.length);
+        CompletableFuture<byte[]> reply;
+        CompletableFuture<Void> sent;
+        synchronized (this.requests) {
+            reply = receive(new Receive(replyLength));
+            sent = enqueue(write);
+        }
+        sent.whenComplete((result, e) -> {
+            if (e != null) {
+                reply.completeExceptionally(e);
+            }
+        });
+        return reply;
+    }
+
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    // Close the channel; sends and receives still outstanding fail
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+        List<Write> abandoned = new ArrayList<>();
+        synchronized (this.writes) {
+            this.writesClosed = true;
+            if (!this.writing) {
+                abandoned.addAll(this.writes);
+                this.writes.clear();
+            }
+        }
+        fail(abandoned, new IOException("Socket closed"));
+        List<Receive> unanswered = new ArrayList<>();
+        synchronized (this.receives) {
+            if (this.failure == null) {
+                this.failure = new IOException("Socket closed");
+            }
+            // An outstanding read still owns the buffers; its handler gives them back
+            if (!this.reading) {
+                unanswered.addAll(this.receives);
+                this.receives.clear();
+                releaseReadBuffers();
+            }
+        }
+        for (Receive receive : unanswered) {
+            receive.future.completeExceptionally(this.failure);
+        }
+    }
+
+    public String toString() {
+        return "SSLAsyncSocket(" + this.connection + ')';
+    }
+
+    private CompletableFuture<Void> enqueue(Write write) {
+        boolean start;
+        synchronized (this.writes) {
+            if (this.writesClosed) {
+                write.release();
+                write.future.completeExceptionally(new IOException("Socket closed"));
+                return write.future;
+            }
+            this.writes.add(write);
+            start = !this.writing;
+            this.writing = true;
+        }
+        if (start) {
+            this.channel.write(write.buffer, write, this.writeHandler);
+        }
+        return write.future;
+    }
+
+    // Writes the head of the queue until it is empty, then starts on the next send
+    private final CompletionHandler<Integer, Write> writeHandler = new CompletionHandler<Integer, Write>() {
+        @Override
+        public void completed(Integer result, Write write) {
+            if (write.buffer.hasRemaining()) {
+                SSLAsyncSocket.this.channel.write(write.buffer, write, this);
+                return;
+            }
+            Write next;
+            synchronized (SSLAsyncSocket.this.writes) {
+                SSLAsyncSocket.this.writes.poll();
+                next = SSLAsyncSocket.this.writes.peek();
+                SSLAsyncSocket.this.writing = next != null;
+            }
+            write.release();
+            write.future.complete(null);
+            if (next != null) {
+                SSLAsyncSocket.this.channel.write(next.buffer, next, this);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Write write) {
+            List<Write> abandoned;
+            synchronized (SSLAsyncSocket.this.writes) {
+                abandoned = new ArrayList<>(SSLAsyncSocket.this.writes);
+                SSLAsyncSocket.this.writes.clear();
+                SSLAsyncSocket.this.writing = false;
+                SSLAsyncSocket.this.writesClosed = true;
+            }
+            fail(abandoned, e);
+            close();
+        }
+    };
+
+    private static void fail(List<Write> writes, Throwable e) {
+        for (Write write : writes) {
+            write.release();
+            write.future.completeExceptionally(e);
+        }
+    }
+
+    private CompletableFuture<byte[]> receive(Receive receive) {
+        List<Receive> answered = new ArrayList<>();
+        boolean read;
+        synchronized (this.receives) {
+            this.receives.add(receive);
+            read = answer(answered);
+        }
+        complete(answered);
+        if (read) {
+            this.channel.read(this.inbound, null, this.readHandler);
+        }
+        return receive.future;
+    }
+
+    // Hand out decrypted data to the receives at the head of the queue, collecting them in answered to be completed
+    // outside the lock; returns true if a read must be started for the rest, with inbound ready for it
+    private boolean answer(List<Receive> answered) {
+        while (!this.receives.isEmpty()) {
+            Receive receive = this.receives.peek();
+            int available = this.plain != null ? this.plain.position() : 0;
+            if (this.failure != null) {
+                receive.failure = this.failure;
+            } else if (receive.length == 0) {
+                receive.data = new byte[0];
+            } else if (available > 0 && available >= receive.length) {
+                receive.data = take(receive.length < 0 ? available : receive.length);
+            } else if (this.ended) {
+                if (receive.length >= 0) {
+                    receive.failure = new EOFException("Stream ended with " + available + " of " + receive.length + " bytes");
+                }
+            } else {
+                break;
+            }
+            answered.add(this.receives.poll());
+        }
+        if (this.receives.isEmpty() || this.reading || this.failure != null || this.ended) {
+            if (!this.reading) {
+                releaseEmptyBuffers();
+            }
+            return false;
+        }
+        if (this.inbound == null) {
+            this.inbound = ByteBuffer.wrap(BufferPool.get().lease(Math.max(BUFFER_SIZE, this.hash.getPacketSize())));
+        }
+        this.reading = true;
+        return true;
+    }
+
+    private static void complete(List<Receive> answered) {
+        for (Receive receive : answered) {
+            if (receive.failure != null) {
+                receive.future.completeExceptionally(receive.failure);
+            } else {
+                receive.future.complete(receive.data);
+            }
+        }
+    }
+
+    // The first length bytes of plain
+    private byte[] take(int length) {
+        byte[] data = new byte[length];
+        this.plain.flip();
+        this.plain.get(data);
+        this.plain.compact();
+        return data;
+    }
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer result, Void attachment) {
+            List<Receive> answered = new ArrayList<>();
+            boolean read;
+            synchronized (SSLAsyncSocket.this.receives) {
+                SSLAsyncSocket.this.reading = false;
+                try {
+                    if (result == -1) {
+                        SSLAsyncSocket.this.ended = true;
+                        if (SSLAsyncSocket.this.inbound.position() != 0) {
+                            throw new IOException("Data Reading ERROR !!!");
+                        }
+                    } else {
+                        decrypt();
+                    }
+                } catch (IOException e) {
+                    SSLAsyncSocket.this.failure = e;
+                }
+                read = answer(answered);
+            }
+            complete(answered);
+            if (read) {
+                SSLAsyncSocket.this.channel.read(SSLAsyncSocket.this.inbound, null, this);
+            } else if (SSLAsyncSocket.this.failure != null) {
+                close();
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            List<Receive> answered = new ArrayList<>();
+            synchronized (SSLAsyncSocket.this.receives) {
+                SSLAsyncSocket.this.reading = false;
+                if (SSLAsyncSocket.this.failure == null) {
+                    SSLAsyncSocket.this.failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                answer(answered);
+                releaseReadBuffers();
+            }
+            complete(answered);
+            close();
+        }
+    };
+
+    // Decrypt and verify every complete packet in inbound into plain, leaving inbound ready for the next read
+    private void decrypt() throws IOException {
+        int packetSize = this.hash.getPacketSize();
+        this.inbound.flip();
+        int length = this.inbound.remaining() / packetSize * packetSize;
+        if (length > 0) {
+            int size = length / packetSize * this.hash.getNumberOfDataBytes();
+            reservePlain(size);
+            byte[] array = this.inbound.array();
+            int off = this.inbound.position();
+            Events.Xor xor = new Events.Xor();
+            xor.begin();
+            OneTimeKey.xorPackets(array, off, length, this.key, packetSize);
+            xor.complete(this.connection, this.traffic.getUser(), length);
+            Events.Unpack unpack = new Events.Unpack();
+            unpack.begin();
+            int n;
+            try {
+                n = this.hash.unpack(array, off, length, this.plain.array(), this.plain.position());
+                unpack.complete(this.connection, this.traffic.getUser(), length);
+            } catch (Exception e) {
+                Metrics.get().checksumError();
+                throw new IOException("Reading ERROR !!! (" + e.getMessage() + ")", e);
+            }
+            this.traffic.unpacked(length / packetSize, n);
+            this.plain.position(this.plain.position() + n);
+            this.inbound.position(off + length);
+        }
+        this.inbound.compact();
+    }
+
+    // Make room for size more bytes in plain, leasing or growing it as needed
+    private void reservePlain(int size) {
+        if (this.plain == null) {
+            this.plain = ByteBuffer.wrap(BufferPool.get().lease(Math.max(BUFFER_SIZE, size)));
+        } else if (this.plain.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.wrap(BufferPool.get().lease(Math.max(2 * this.plain.capacity(), this.plain.position() + size)));
+            this.plain.flip();
+            grown.put(this.plain);
+            BufferPool.get().release(this.plain.array());
+            this.plain = grown;
+        }
+    }
+
+    // Keep each buffer only while it holds bytes
+    private void releaseEmptyBuffers() {
+        if (this.inbound != null && this.inbound.position() == 0) {
+            BufferPool.get().release(this.inbound.array());
+            this.inbound = null;
+        }
+        if (this.plain != null && this.plain.position() == 0) {
+            BufferPool.get().release(this.plain.array());
+            this.plain = null;
+        }
+    }
+
+    private void releaseReadBuffers() {
+        if (this.inbound != null) {
+            BufferPool.get().release(this.inbound.array());
+            this.inbound = null;
+        }
+        if (this.plain != null) {
+            BufferPool.get().release(this.plain.array());
+            this.plain = null;
+        }
+    }
+
+    // One send: its packets, and the leased array they are in, if any
+    private static class Write {
+        private final ByteBuffer buffer;
+        private final byte[] leased;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Write(ByteBuffer buffer, byte[] leased) {
+            this.buffer = buffer;
+            this.leased = leased;
+        }
+
+        void release() {
+            if (this.leased != null) {
+                BufferPool.get().release(this.leased);
+            }
+        }
+    }
+
+    // One receive: length wanted (-1 for whatever comes next), and the data or failure it is answered with
+    private static class Receive {
+        private final int length;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private byte[] data;
+        private Throwable failure;
+
+        Receive(int length) {
+            this.length = length;
+        }
+    }
+}
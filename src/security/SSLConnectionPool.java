@@ -0,0 +1,328 @@
+package security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Authenticated connections kept open between requests, by host, port and user, so that repeated calls to
+// the same server skip the TCP connect and the RSA handshake. lease() hands out an idle connection or opens
+// a new one through the ClientSession; release() takes it back once the caller's reply has been read in full,
+// and invalidate() closes one whose conversation went wrong. Any thread may lease and release.
+//
+// A connection is only reused if nothing is waiting to be read on it. One that has been idle for a second or
+// more is also probed with a 1 ms read, which finds connections the server has closed in the meantime. A
+// background thread probes idle connections, closes those idle longer than idleTimeoutMillis beyond the
+// minIdle every key keeps, and opens new ones to get back up to minIdle.
+public class SSLConnectionPool implements Closeable {
+    // Idle connections younger than this are taken to be alive without a probe
+    private static final long VALIDATE_AFTER_MILLIS = 1000;
+    private static final int PROBE_TIMEOUT_MILLIS = 1;
+
+    private final int minIdle;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Key entry of every connection out on lease
+    private final Map<SSLSocket, Entry> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder reuses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder failedChecks = new LongAdder();
+    private volatile boolean closed;
+
+    // Keep between minIdle and maxIdle idle connections per key; idleTimeoutMillis <= 0 never expires them
+    public SSLConnectionPool(int minIdle, int maxIdle, long idleTimeoutMillis) {
+        if (minIdle < 0 || maxIdle < minIdle) {
+            throw new IllegalArgumentException("Bad idle bounds " + minIdle + ".." + maxIdle);
+        }
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        long interval = idleTimeoutMillis > 0 ? Math.max(100, Math.min(idleTimeoutMillis / 2, 5000)) : 5000;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ssl-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::maintain, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // A connection for session's user to host:port, to be given back with release() or invalidate()
+    public SSLSocket lease(ClientSession session, String host, int port) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("Connection pool is closed");
+        }
+        Entry entry = this.entries.computeIfAbsent(host + ":" + port + ":" + session.getName(),
+                key -> new Entry(session, host, port));
+        for (;;) {
+            Idle idle;
+            synchronized (entry) {
+                idle = entry.idle.pollFirst();
+            }
+            if (idle == null) {
+                break;
+            }
+            if (isReusable(idle.socket) && (System.currentTimeMillis() - idle.since < VALIDATE_AFTER_MILLIS || isAlive(idle.socket))) {
+                this.reuses.increment();
+                this.leased.put(idle.socket, entry);
+                return idle.socket;
+            }
+            this.failedChecks.increment();
+            closeQuietly(idle.socket);
+        }
+        SSLSocket socket = session.connect(host, port);
+        this.connects.increment();
+        this.leased.put(socket, entry);
+        return socket;
+    }
+
+    // Give back a leased connection whose last reply has been read; it is closed instead if it cannot be reused
+    public void release(SSLSocket socket) {
+        Entry entry = leased(socket);
+        try {
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+        if (isReusable(socket)) {
+            synchronized (entry) {
+                if (!this.closed && entry.idle.size() < this.maxIdle) {
+                    entry.idle.addFirst(new Idle(socket));
+                    return;
+                }
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    // Close a leased connection that must not be reused, for instance after a failed request
+    public void invalidate(SSLSocket socket) {
+        leased(socket);
+        closeQuietly(socket);
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (Entry entry : this.entries.values()) {
+            synchronized (entry) {
+                count += entry.idle.size();
+            }
+        }
+        return count;
+    }
+
+    public int getLeasedCount() {
+        return this.leased.size();
+    }
+
+    // Leases that had to open a new connection
+    public long getConnects() {
+        return this.connects.sum();
+    }
+
+    // Leases served by an idle connection
+    public long getReuses() {
+        return this.reuses.sum();
+    }
+
+    // Idle connections closed for being idle too long
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    // Idle connections closed because they were found closed or out of step
+    public long getFailedChecks() {
+        return this.failedChecks.sum();
+    }
+
+    // Close every idle connection; those still leased are closed when they are given back
+    @Override
+    public void close() {
+        this.closed = true;
+        this.evictor.shutdownNow();
+        for (Entry entry : this.entries.values()) {
+            List<Idle> idle;
+            synchronized (entry) {
+                idle = new ArrayList<>(entry.idle);
+                entry.idle.clear();
+            }
+            for (Idle connection : idle) {
+                closeQuietly(connection.socket);
+            }
+        }
+    }
+
+    public String toString() {
+        return "idle=" + getIdleCount() + " leased=" + getLeasedCount() + " connects=" + getConnects() + " reuses="
+                + getReuses() + " evictions=" + getEvictions() + " failed_checks=" + getFailedChecks();
+    }
+
+    private Entry leased(SSLSocket socket) {
+        Entry entry = this.leased.remove(socket);
+        if (entry == null) {
+            throw new IllegalStateException("Connection is not leased from this pool: " + socket);
+        }
+        return entry;
+    }
+
+    // Open, and nothing left unread that would put the next request's reply out of step
+    private static boolean isReusable(SSLSocket socket) {
+        try {
+            return !socket.isClosed() && socket.getInputStream().available() == 0
+                    && socket.getCryptedInputStream().available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Wait briefly for a byte: a healthy idle connection times out, while a closed one reads end of stream or fails
+    private static boolean isAlive(SSLSocket socket) {
+        int timeout;
+        try {
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            // Any byte at all is unexpected on an idle connection
+            socket.getCryptedInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(timeout);
+            } catch (IOException e) {
+                // The connection is closed; the next check or use finds out
+            }
+        }
+    }
+
+    private static void closeQuietly(SSLSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+    }
+
+    // Probe and expire the idle connections of every key, then open new ones up to minIdle
+    private void maintain() {
+        for (Entry entry : this.entries.values()) {
+            try {
+                maintain(entry);
+            } catch (RuntimeException e) {
+                System.out.println("POOL: " + e);
+            }
+        }
+    }
+
+    private void maintain(Entry entry) {
+        long now = System.currentTimeMillis();
+        List<SSLSocket> expired = new ArrayList<>();
+        List<Idle> probe = new ArrayList<>();
+        synchronized (entry) {
+            // Oldest first; the connections idle for less than VALIDATE_AFTER_MILLIS stay available meanwhile
+            Iterator<Idle> iterator = entry.idle.descendingIterator();
+            while (iterator.hasNext()) {
+                Idle idle = iterator.next();
+                if (now - idle.since < VALIDATE_AFTER_MILLIS) {
+                    break;
+                }
+                iterator.remove();
+                if (this.idleTimeoutMillis > 0 && now - idle.since > this.idleTimeoutMillis
+                        && entry.idle.size() + probe.size() >= this.minIdle) {
+                    expired.add(idle.socket);
+                } else {
+                    probe.add(idle);
+                }
+            }
+        }
+        for (SSLSocket socket : expired) {
+            this.evictions.increment();
+            closeQuietly(socket);
+        }
+        for (Idle idle : probe) {
+            if (!isReusable(idle.socket) || !isAlive(idle.socket)) {
+                this.failedChecks.increment();
+                closeQuietly(idle.socket);
+                continue;
+            }
+            boolean kept = false;
+            synchronized (entry) {
+                // Still older than everything released while it was being probed
+                if (!this.closed && entry.idle.size() < this.maxIdle) {
+                    entry.idle.addLast(idle);
+                    kept = true;
+                }
+            }
+            if (!kept) {
+                closeQuietly(idle.socket);
+            }
+        }
+        for (;;) {
+            synchronized (entry) {
+                if (this.closed || entry.idle.size() >= this.minIdle) {
+                    return;
+                }
+            }
+            SSLSocket socket;
+            try {
+                socket = entry.session.connect(entry.host, entry.port);
+            } catch (IOException e) {
+                // Try again next round
+                return;
+            }
+            this.connects.increment();
+            boolean kept = false;
+            synchronized (entry) {
+                if (!this.closed && entry.idle.size() < this.maxIdle) {
+                    entry.idle.addFirst(new Idle(socket));
+                    kept = true;
+                }
+            }
+            if (!kept) {
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+
+    // Idle connections to one server as one user, most recently used first
+    private static class Entry {
+        private final ClientSession session;
+        private final String host;
+        private final int port;
+        private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+
+        Entry(ClientSession session, String host, int port) {
+            this.session = session;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private static class Idle {
+        private final SSLSocket socket;
+        private final long since = System.currentTimeMillis();
+
+        Idle(SSLSocket socket) {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package security;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Many independent streams over one authenticated SSLSocket, so one handshake can carry any number of
+// concurrent conversations. Each frame inside the Hash/OneTimeKey packet stream is
+//
+//   [type: 1 byte][stream id: 4 bytes][length: 4 bytes][length bytes of data, DATA frames only]
+//
+// DATA carries up to 16 KB of a stream; WINDOW gives the sender length more bytes of credit; FIN ends a
+// stream's data in one direction; RESET abandons the stream. A stream is opened by its first frame, with odd
+// ids from the client side and even ids from the server side. Ids are handed out as first frames are written,
+// so each side's ids reach the peer in increasing order; DATA and FIN for a stream the receiver does not
+// have, because it has closed it or never saw it open, are answered with RESET.
+//
+// Every stream may have WINDOW_SIZE bytes in flight; the receiver sends WINDOW once its reader has taken
+// half of that, so a slow reader stalls only its own stream. Writers take turns through a fair lock one frame
+// at a time, so a large write cannot hold up the other streams, and whoever writes last in a burst flushes.
+// One reader thread per connection demultiplexes frames; it never writes, so it cannot deadlock against writers.
+public class SSLMultiplexer implements Closeable {
+    public static final int WINDOW_SIZE = 64 * 1024;
+    // Largest DATA frame
+    public static final int MAX_FRAME_DATA = 16 * 1024;
+
+    private static final int HEADER_SIZE = 9;
+    private static final byte DATA = 0;
+    private static final byte WINDOW = 1;
+    private static final byte FIN = 2;
+    private static final byte RESET = 3;
+
+    private final SSLSocket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // Streams opened here that have not written a frame yet, and so have no id
+    private final Set<Stream> unsent = ConcurrentHashMap.newKeySet();
+    // Fair, so streams waiting to write get their frames out in turn
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final ReentrantLock acceptLock = new ReentrantLock();
+    private final Condition acceptable = this.acceptLock.newCondition();
+    private final ArrayDeque<Stream> accepted = new ArrayDeque<>();
+    // Ids to send RESET for, queued by the reader and written by a thread of their own
+    private final ArrayDeque<Integer> resets = new ArrayDeque<>();
+    private boolean resetting;
+    // Guarded by writeLock
+    private int nextId;
+    // Highest stream id the peer has opened; frames for lower ids that are gone belong to closed streams
+    private int peerId;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // client decides which ids this side opens streams with, and must differ from the other end
+    public SSLMultiplexer(SSLSocket socket, boolean client) throws IOException {
+        this.socket = socket;
+        // Frames are flushed as soon as no other writer is waiting; WINDOW frames must not sit out Nagle's delay
+        socket.setTcpNoDelay(true);
+        this.out = socket.getOutputStream();
+        this.in = new DataInputStream(socket.getInputStream());
+        this.nextId = client ? 1 : 2;
+        Thread reader = new Thread(this::readFrames, "ssl-mux-" + socket.connectionName());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public SSLSocket getSocket() {
+        return this.socket;
+    }
+
+    // Open a new stream; it gets its id, and the peer sees it, when its first frame goes out
+    public Stream open() throws IOException {
+        ensureOpen();
+        Stream stream = new Stream(0);
+        this.unsent.add(stream);
+        return stream;
+    }
+
+    // Wait for the peer to open a stream; null once the connection is closed
+    public Stream accept() throws IOException {
+        this.acceptLock.lock();
+        try {
+            while (this.accepted.isEmpty() && !this.closed) {
+                this.acceptable.await();
+            }
+            return this.accepted.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            this.acceptLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public int getStreamCount() {
+        return this.streams.size() + this.unsent.size();
+    }
+
+    // Close the connection; every stream on it fails from now on
+    @Override
+    public void close() throws IOException {
+        fail(new IOException("Connection closed"));
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.failure = e;
+            this.closed = true;
+        }
+        for (Stream stream : this.streams.values()) {
+            stream.abort();
+        }
+        for (Stream stream : this.unsent) {
+            stream.abort();
+        }
+        this.acceptLock.lock();
+        try {
+            this.acceptable.signalAll();
+        } finally {
+            this.acceptLock.unlock();
+        }
+        try {
+            this.socket.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException(this.failure.getMessage(), this.failure);
+        }
+    }
+
+    private void writeFrame(byte type, Stream stream, byte[] data, int off, int len) throws IOException {
+        this.writeLock.lock();
+        try {
+            ensureOpen();
+            if (stream.id == 0) {
+                stream.number();
+            }
+            writeFrame(type, stream.id, data, off, len);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void writeFrame(byte type, int id, byte[] data, int off, int len) throws IOException {
+        this.writeLock.lock();
+        try {
+            ensureOpen();
+            this.header[0] = type;
+            putInt(this.header, 1, id);
+            putInt(this.header, 5, len);
+            this.out.write(this.header, 0, HEADER_SIZE);
+            if (type == DATA) {
+                this.out.write(data, off, len);
+            }
+            // The last writer waiting flushes for everyone before it
+            if (!this.writeLock.hasQueuedThreads()) {
+                this.out.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private static void putInt(byte[] array, int off, int value) {
+        array[off] = (byte) (value >>> 24);
+        array[off + 1] = (byte) (value >>> 16);
+        array[off + 2] = (byte) (value >>> 8);
+        array[off + 3] = (byte) value;
+    }
+
+    private void readFrames() {
+        byte[] data = BufferPool.get().lease(MAX_FRAME_DATA);
+        try {
+            while (true) {
+                byte type = this.in.readByte();
+                int id = this.in.readInt();
+                int length = this.in.readInt();
+                if (type == DATA) {
+                    if (length < 0 || length > MAX_FRAME_DATA) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    this.in.readFully(data, 0, length);
+                } else if (type == WINDOW && (length <= 0 || length > WINDOW_SIZE)) {
+                    throw new IOException("Bad window update");
+                }
+                Stream stream = this.streams.get(id);
+                if (stream == null && (type == DATA || type == FIN)) {
+                    stream = peerOpened(id);
+                    if (stream == null) {
+                        // The peer is still sending on a stream this side does not have; tell it to stop
+                        resetLater(id);
+                        continue;
+                    }
+                }
+                if (stream == null) {
+                    // WINDOW or RESET for a stream this side has already closed
+                    continue;
+                }
+                switch (type) {
+                    case DATA:
+                        stream.received(data, length);
+                        break;
+                    case WINDOW:
+                        stream.credit(length);
+                        break;
+                    case FIN:
+                        stream.finished();
+                        break;
+                    case RESET:
+                        stream.reset();
+                        break;
+                    default:
+                        throw new IOException("Bad frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            fail(new IOException("Connection closed by peer"));
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            BufferPool.get().release(data);
+        }
+    }
+
+    // Reader thread: queue a RESET for id. The reader never writes, so a thread of its own sends the queue.
+    private void resetLater(int id) throws IOException {
+        synchronized (this.resets) {
+            // A peer that keeps sending faster than the resets go out is not going to stop
+            if (this.resets.size() >= WINDOW_SIZE / HEADER_SIZE) {
+                throw new IOException("Too many frames for unknown streams");
+            }
+            this.resets.add(id);
+            if (this.resetting) {
+                return;
+            }
+            this.resetting = true;
+        }
+        Thread sender = new Thread(this::sendResets, "ssl-mux-reset-" + this.socket.connectionName());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void sendResets() {
+        while (true) {
+            int id;
+            synchronized (this.resets) {
+                Integer next = this.resets.poll();
+                if (next == null) {
+                    this.resetting = false;
+                    return;
+                }
+                id = next;
+            }
+            try {
+                writeFrame(RESET, id, null, 0, 0);
+            } catch (IOException e) {
+                // The connection has failed, and every stream with it
+                return;
+            }
+        }
+    }
+
+    // The stream for a frame with a new id from the peer, or null if the id is not a new one
+    private Stream peerOpened(int id) throws IOException {
+        if ((id & 1) == (this.nextId & 1)) {
+            // One of ours that has been closed
+            return null;
+        }
+        if (id <= this.peerId) {
+            return null;
+        }
+        this.peerId = id;
+        Stream stream = new Stream(id);
+        this.streams.put(id, stream);
+        this.acceptLock.lock();
+        try {
+            this.accepted.add(stream);
+            this.acceptable.signal();
+        } finally {
+            this.acceptLock.unlock();
+        }
+        return stream;
+    }
+
+    // One conversation, with Socket-like semantics: closing either of its streams closes it
+    public class Stream implements Closeable {
+        // 0 until the first frame is written
+        private volatile int id;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = this.lock.newCondition();
+        private final InputStream inputStream = new StreamInput();
+        private final OutputStream outputStream = new StreamOutput();
+
+        // Received data waiting to be read: ring[head..head+count) modulo WINDOW_SIZE, leased only while not empty
+        private byte[] ring;
+        private int head;
+        private int count;
+        // Bytes read since the last WINDOW frame
+        private int consumed;
+        private int sendWindow = WINDOW_SIZE;
+        private boolean finReceived;
+        private boolean finSent;
+        private boolean reset;
+        private boolean closed;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        // 0 for a stream opened here that has not written anything yet
+        public int getId() {
+            return this.id;
+        }
+
+        // Under writeLock, so a later id can never overtake an earlier one on the wire, and under the
+        // stream's lock against a close() that has already forgotten the stream
+        private void number() throws IOException {
+            this.lock.lock();
+            try {
+                if (this.closed) {
+                    throw failure("Write failed");
+                }
+                this.id = nextId;
+                nextId += 2;
+                streams.put(this.id, this);
+                unsent.remove(this);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        public InputStream getInputStream() {
+            return this.inputStream;
+        }
+
+        public OutputStream getOutputStream() {
+            return this.outputStream;
+        }
+
+        // Tell the peer no more data is coming, leaving this side able to read
+        public void shutdownOutput() throws IOException {
+            this.lock.lock();
+            try {
+                if (this.finSent || this.closed || this.reset) {
+                    return;
+                }
+                this.finSent = true;
+            } finally {
+                this.lock.unlock();
+            }
+            writeFrame(FIN, this, null, 0, 0);
+        }
+
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        // End the stream; if the peer may still send, it is told to stop
+        @Override
+        public void close() throws IOException {
+            boolean sendFin;
+            boolean sendReset;
+            int id;
+            this.lock.lock();
+            try {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                id = this.id;
+                sendFin = !this.finSent && !this.reset;
+                sendReset = !this.finReceived && !this.reset;
+                this.finSent = true;
+                releaseRing();
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            if (id == 0) {
+                // The peer never heard of it
+                unsent.remove(this);
+                return;
+            }
+            streams.remove(id);
+            if (SSLMultiplexer.this.closed) {
+                return;
+            }
+            if (sendFin) {
+                writeFrame(FIN, id, null, 0, 0);
+            }
+            if (sendReset) {
+                writeFrame(RESET, id, null, 0, 0);
+            }
+        }
+
+        public String toString() {
+            return "Stream(" + this.id + ' ' + socket + ')';
+        }
+
+        // Reader thread: data[0..length) arrived for this stream
+        void received(byte[] data, int length) throws IOException {
+            this.lock.lock();
+            try {
+                if (this.closed || this.reset) {
+                    return;
+                }
+                if (this.finReceived || this.count + length > WINDOW_SIZE) {
+                    throw new IOException("Stream " + this.id + " overran its window");
+                }
+                if (this.ring == null) {
+                    this.ring = BufferPool.get().lease(WINDOW_SIZE);
+                    this.head = 0;
+                }
+                int tail = (this.head + this.count) % WINDOW_SIZE;
+                int first = Math.min(length, WINDOW_SIZE - tail);
+                System.arraycopy(data, 0, this.ring, tail, first);
+                System.arraycopy(data, first, this.ring, 0, length - first);
+                this.count += length;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        // The peer can only give back credit this side has used
+        void credit(int bytes) throws IOException {
+            this.lock.lock();
+            try {
+                if (bytes > WINDOW_SIZE - this.sendWindow) {
+                    throw new IOException("Bad window update");
+                }
+                this.sendWindow += bytes;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        void finished() {
+            this.lock.lock();
+            try {
+                this.finReceived = true;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        void reset() {
+            this.lock.lock();
+            try {
+                this.reset = true;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        // The connection failed; what was received can still be read until the stream is closed
+        void abort() {
+            this.lock.lock();
+            try {
+                this.reset = true;
+                this.changed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void releaseRing() {
+            if (this.ring != null) {
+                BufferPool.get().release(this.ring);
+                this.ring = null;
+                this.count = 0;
+            }
+        }
+
+        private void await() throws IOException {
+            try {
+                this.changed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        private IOException failure(String what) {
+            if (SSLMultiplexer.this.closed) {
+                return new IOException(what + ": " + SSLMultiplexer.this.failure.getMessage(), SSLMultiplexer.this.failure);
+            }
+            return new IOException(what + (this.closed ? ": stream closed" : ": stream reset by peer"));
+        }
+
+        private int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            int update = 0;
+            this.lock.lock();
+            try {
+                while (this.count == 0) {
+                    if (this.closed || (this.reset && !this.finReceived)) {
+                        throw failure("Read failed");
+                    }
+                    if (this.finReceived) {
+                        return -1;
+                    }
+                    await();
+                }
+                n = Math.min(len, this.count);
+                int first = Math.min(n, WINDOW_SIZE - this.head);
+                System.arraycopy(this.ring, this.head, b, off, first);
+                System.arraycopy(this.ring, 0, b, off + first, n - first);
+                this.head = (this.head + n) % WINDOW_SIZE;
+                this.count -= n;
+                if (this.count == 0) {
+                    releaseRing();
+                }
+                this.consumed += n;
+                if (this.consumed >= WINDOW_SIZE / 2 && !this.finReceived && !this.reset) {
+                    update = this.consumed;
+                    this.consumed = 0;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            if (update > 0) {
+                try {
+                    writeFrame(WINDOW, this, null, 0, update);
+                } catch (IOException e) {
+                    // The connection has failed; the next read reports it, this one still has its data
+                }
+            }
+            return n;
+        }
+
+        private int available() {
+            this.lock.lock();
+            try {
+                return this.count;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+                this.lock.lock();
+                try {
+                    while (this.sendWindow == 0 && !this.closed && !this.reset && !this.finSent) {
+                        await();
+                    }
+                    if (this.closed || this.reset || this.finSent) {
+                        throw failure("Write failed");
+                    }
+                    n = Math.min(Math.min(len, this.sendWindow), MAX_FRAME_DATA);
+                    this.sendWindow -= n;
+                } finally {
+                    this.lock.unlock();
+                }
+                writeFrame(DATA, this, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private class StreamInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return Stream.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                Objects.checkFromIndexSize(off, len, b.length);
+                return len == 0 ? 0 : Stream.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Stream.this.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        }
+
+        // Every write goes out as DATA frames straight away; wrap it in a BufferedOutputStream for small writes
+        private class StreamOutput extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                Stream.this.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Objects.checkFromIndexSize(off, len, b.length);
+                Stream.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package security;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Non-blocking counterpart of SSLServerSocket: one acceptor thread and a Selector per loop thread,
+// speaking the same greeting and Hash/OneTimeKey packet framing as SSLSocket. The RSA work of each
+// handshake runs on a fixed pool of handshake workers, so it never holds up the other connections
+// on a selector; the result comes back to the session's loop, which carries on from there.
+public class SSLServerEngine implements Runnable, Closeable {
+    // Longest greeting token accepted before the connection is dropped
+    private static final int MAX_TOKEN_SIZE = 8 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Callbacks run on the connection's selector thread and must not block
+    public interface Handler {
+        default void opened(Session session) throws IOException {
+        }
+
+        // data[off..off+len) is only valid for the duration of the call
+        void received(Session session, byte[] data, int off, int len) throws IOException;
+
+        default void closed(Session session) {
+        }
+    }
+
+    private ServerSocketChannel serverChannel;
+    private RSA.PrivateKey privateKey;
+    private UserDirectory users;
+    private SessionCache sessions;
+    private SessionTickets tickets;
+    private Handler handler;
+    private Loop[] loops;
+    private int handshakeWorkers = Runtime.getRuntime().availableProcessors();
+    private ExecutorService handshakers;
+    private volatile boolean running;
+
+    public SSLServerEngine(int port, RSA.PrivateKey privateKey, Properties properties, Handler handler) throws IOException {
+        this(new InetSocketAddress(port), Runtime.getRuntime().availableProcessors(), privateKey, new UserDirectory(properties), handler);
+    }
+
+    public SSLServerEngine(InetSocketAddress address, int selectors, RSA.PrivateKey privateKey, UserDirectory users, Handler handler) throws IOException {
+        this.privateKey = privateKey;
+        this.users = users;
+        this.handler = handler;
+        this.loops = new Loop[Math.max(1, selectors)];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new Loop();
+        }
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address);
+        this.running = true;
+    }
+
+    // Remember sessions from full handshakes so clients can resume them; null turns resumption off
+    public void setSessionCache(SessionCache sessions) {
+        this.sessions = sessions;
+    }
+
+    // Issue tickets to clients that ask for one and accept them from any node sharing the secret; null turns tickets off
+    public void setSessionTickets(SessionTickets tickets) {
+        this.tickets = tickets;
+    }
+
+    // Run handshakes on this many worker threads, or on the selector threads for 0; takes effect when run() starts.
+    // Each session has at most one handshake waiting, so the queue never outgrows the open connections.
+    public void setHandshakeWorkers(int workers) {
+        this.handshakeWorkers = workers;
+    }
+
+    public int getLocalPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    // Accept connections until closed, spreading them round-robin over the selector loops
+    @Override
+    public void run() {
+        if (this.handshakeWorkers > 0) {
+            this.handshakers = Executors.newFixedThreadPool(this.handshakeWorkers, runnable -> {
+                Thread thread = new Thread(runnable, "ssl-engine-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (int i = 0; i < this.loops.length; i++) {
+            Thread thread = new Thread(this.loops[i], "ssl-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        int next = 0;
+        while (this.running) {
+            try {
+                SocketChannel channel = this.serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                this.loops[next].register(channel);
+                next = (next + 1) % this.loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("SERVER: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.serverChannel.close();
+        if (this.handshakers != null) {
+            this.handshakers.shutdownNow();
+        }
+        for (Loop loop : this.loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private class Loop implements Runnable {
+        private Selector selector;
+        private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Aborted sessions, whose inbound buffer only this loop may give back once it is done with them
+        private Queue<Session> aborted = new ConcurrentLinkedQueue<>();
+        // Work handed back to this loop's thread, such as finished handshakes
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            this.pending.add(channel);
+            this.selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    this.selector.select();
+                    SocketChannel channel;
+                    while ((channel = this.pending.poll()) != null) {
+                        Session session = new Session(channel, this);
+                        session.key = channel.register(this.selector, SelectionKey.OP_READ, session);
+                    }
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : this.selector.selectedKeys()) {
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                session.readable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flushOutbound();
+                            }
+                        } catch (Exception e) {
+                            System.out.println("HANDLER: " + e);
+                            session.abort();
+                        }
+                    }
+                    this.selector.selectedKeys().clear();
+                    releaseAborted();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.out.println("SERVER: " + e);
+            } finally {
+                for (SelectionKey key : this.selector.keys()) {
+                    ((Session) key.attachment()).abort();
+                }
+                releaseAborted();
+                try {
+                    this.selector.close();
+                } catch (IOException e) {
+                    System.out.println("SERVER: " + e);
+                }
+            }
+        }
+
+        private void releaseAborted() {
+            Session session;
+            while ((session = this.aborted.poll()) != null) {
+                session.releaseInbound();
+            }
+        }
+    }
+
+    // One client connection: greeting first, then Hash packets encrypted with the one-time key.
+    // Both buffers are leased from BufferPool only while they hold bytes, so an idle session keeps none;
+    // inbound belongs to the selector thread and outbound is guarded by the session's monitor.
+    public class Session {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private Loop loop;
+        private ByteBuffer inbound;
+        private ByteBuffer outbound;
+        private byte[] oneTimeKey;
+        private Hash hash;
+        private Object attachment;
+        private Metrics.Traffic traffic;
+        private String connection;
+        private long handshakeStart;
+        private Events.HandshakePhase greetingPhase;
+        private boolean closing;
+        private boolean closed;
+        // Set while a handshake worker has the greeting; the loop reads nothing more until it is back
+        private boolean handshaking;
+
+        // Greeting parser state: tokens seen so far, the token being built, and whether the next byte is escaped
+        private byte[][] tokens = new byte[5][];
+        private int tokenCount = -1;
+        private byte[] token = new byte[128];
+        private int tokenLength;
+        private boolean escaped;
+
+        Session(SocketChannel channel, Loop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.connection = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        public Hash getHash() {
+            return this.hash;
+        }
+
+        public InetSocketAddress getRemoteAddress() throws IOException {
+            return (InetSocketAddress) this.channel.getRemoteAddress();
+        }
+
+        public Object getAttachment() {
+            return this.attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        // Pack and encrypt len bytes of data and queue them for the client
+        public void write(byte[] data, int off, int len) throws IOException {
+            if (pack(data, off, len)) {
+                abort();
+            }
+        }
+
+        // Close once everything queued so far has been written
+        public void close() throws IOException {
+            boolean done;
+            synchronized (this) {
+                this.closing = true;
+                done = flush();
+            }
+            if (done) {
+                abort();
+            }
+        }
+
+        void flushOutbound() throws IOException {
+            if (flush()) {
+                abort();
+            }
+        }
+
+        private synchronized boolean pack(byte[] data, int off, int len) throws IOException {
+            if (this.closing) {
+                throw new IOException("Session closed");
+            }
+            int size = this.hash.getPackedSize(len);
+            reserveOutbound(size);
+            int position = this.outbound.position();
+            Events.Pack pack = new Events.Pack();
+            pack.begin();
+            this.hash.pack(data, off, len, this.outbound.array(), position);
+            pack.complete(this.connection, this.traffic.getUser(), len);
+            Events.Xor xor = new Events.Xor();
+            xor.begin();
+            OneTimeKey.xorPackets(this.outbound.array(), position, size, this.oneTimeKey, this.hash.getPacketSize());
+            xor.complete(this.connection, this.traffic.getUser(), size);
+            this.traffic.packed(size / this.hash.getPacketSize(), len);
+            this.outbound.position(position + size);
+            return flush();
+        }
+
+        // Write what the channel takes; true once a closing session has nothing left to send, for the
+        // caller to abort() after letting go of the lock so that handler.closed never runs under it
+        private synchronized boolean flush() throws IOException {
+            if (this.outbound != null) {
+                this.outbound.flip();
+                this.channel.write(this.outbound);
+                this.outbound.compact();
+                if (this.outbound.position() == 0) {
+                    releaseOutbound();
+                }
+            }
+            if (this.outbound != null) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                this.key.selector().wakeup();
+            } else if (this.closing) {
+                return true;
+            } else if (this.key.isValid()) {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+            return false;
+        }
+
+        void abort() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                this.closing = true;
+                this.key.cancel();
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    System.out.println("HANDLER: " + e);
+                }
+                releaseOutbound();
+            }
+            // Even on the selector thread a read may still be using inbound, so the loop releases it afterwards
+            this.loop.aborted.add(this);
+            this.loop.selector.wakeup();
+            if (this.hash != null) {
+                Metrics.get().connectionClosed();
+                handler.closed(this);
+            } else if (this.handshakeStart != 0) {
+                Metrics.get().handshakeFailed();
+            }
+        }
+
+        void readable() throws Exception {
+            if (this.inbound == null) {
+                this.inbound = ByteBuffer.wrap(BufferPool.get().lease(this.hash != null ? Math.max(BUFFER_SIZE, this.hash.getPacketSize()) : BUFFER_SIZE));
+            }
+            try {
+                if (this.channel.read(this.inbound) == -1) {
+                    if (this.hash == null) {
+                        throw new EOFException("Unfinished Greeting");
+                    }
+                    close();
+                    return;
+                }
+                this.inbound.flip();
+                if (this.hash == null && !greeting()) {
+                    // Whatever followed the greeting waits for the handshake to come back
+                    if (this.handshaking) {
+                        this.inbound.compact();
+                    } else {
+                        this.inbound.clear();
+                    }
+                    return;
+                }
+                decrypt();
+            } finally {
+                // Keep the buffer only while it holds part of a packet
+                if (this.closed || this.inbound.position() == 0) {
+                    releaseInbound();
+                }
+            }
+        }
+
+        // Selector thread only, once nothing is reading from inbound
+        void releaseInbound() {
+            if (this.inbound != null) {
+                BufferPool.get().release(this.inbound.array());
+                this.inbound = null;
+            }
+        }
+
+        // Make room for size more bytes in outbound, leasing or growing it as needed
+        private void reserveOutbound(int size) {
+            if (this.outbound == null) {
+                this.outbound = ByteBuffer.wrap(BufferPool.get().lease(Math.max(BUFFER_SIZE, size)));
+            } else if (this.outbound.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.wrap(BufferPool.get().lease(Math.max(2 * this.outbound.capacity(), this.outbound.position() + size)));
+                this.outbound.flip();
+                grown.put(this.outbound);
+                releaseOutbound();
+                this.outbound = grown;
+            }
+        }
+
+        private synchronized void releaseOutbound() {
+            if (this.outbound != null) {
+                BufferPool.get().release(this.outbound.array());
+                this.outbound = null;
+            }
+        }
+
+        // Consume greeting bytes; returns true once the handshake is complete, leaving any following packets in inbound
+        private boolean greeting() throws Exception {
+            while (this.inbound.hasRemaining()) {
+                byte b = this.inbound.get();
+                if (this.tokenCount < 0) {
+                    if (b == '!') {
+                        this.tokenCount = 0;
+                        this.handshakeStart = System.nanoTime();
+                        this.greetingPhase = new Events.HandshakePhase();
+                        this.greetingPhase.begin();
+                        Metrics.get().handshakeStarted();
+                    }
+                } else if (!this.escaped && b == '\\') {
+                    this.escaped = true;
+                } else if (!this.escaped && b == '!') {
+                    this.tokens[this.tokenCount++] = Arrays.copyOf(this.token, this.tokenLength);
+                    this.tokenLength = 0;
+                    // An empty first token asks to resume the session or ticket in the second;
+                    // two empty tokens ask for a ticket after the usual three
+                    boolean ticketRequested = this.tokenCount >= 2 && this.tokens[0].length == 0 && this.tokens[1].length == 0;
+                    if (this.tokenCount == 2 && this.tokens[0].length == 0 && !ticketRequested) {
+                        this.greetingPhase.complete("greeting", this.connection, null, this.tokens[1].length);
+                        byte[] ticket = this.tokens[1];
+                        return handshake(() -> SSLServerSocket.resume(ticket, sessions, tickets, users, this.connection), true, false);
+                    }
+                    int first = ticketRequested ? 2 : 0;
+                    if (this.tokenCount == first + 3) {
+                        this.greetingPhase.complete("greeting", this.connection, null,
+                                this.tokens[first].length + this.tokens[first + 1].length + this.tokens[first + 2].length);
+                        byte[] token0 = this.tokens[first];
+                        byte[] token1 = this.tokens[first + 1];
+                        byte[] token2 = this.tokens[first + 2];
+                        return handshake(() -> {
+                            Object[] result = SSLServerSocket.handshake(token0, token1, token2, privateKey, users, this.connection);
+                            if (sessions != null) {
+                                sessions.put(SSLServerSocket.newSession(result));
+                            }
+                            return result;
+                        }, false, ticketRequested);
+                    }
+                } else {
+                    this.escaped = false;
+                    if (this.tokenLength == this.token.length) {
+                        if (this.tokenLength == MAX_TOKEN_SIZE) {
+                            throw new IOException("Greeting too long");
+                        }
+                        this.token = Arrays.copyOf(this.token, Math.min(2 * this.tokenLength, MAX_TOKEN_SIZE));
+                    }
+                    this.token[this.tokenLength++] = b;
+                }
+            }
+            return false;
+        }
+
+        // Run the RSA work of a complete greeting on a handshake worker and hand the result back to the loop;
+        // true only if there are no workers and it was done right here, leaving the session established
+        private boolean handshake(Callable<Object[]> work, boolean resumed, boolean ticketRequested) throws Exception {
+            if (handshakers == null) {
+                Object[] result = work.call();
+                return reply(result, ticketRequested ? ticket(result) : null, resumed);
+            }
+            this.handshaking = true;
+            this.key.interestOps(0);
+            try {
+                handshakers.execute(() -> {
+                    Object[] result = null;
+                    byte[] ticket = null;
+                    Exception failure = null;
+                    try {
+                        result = work.call();
+                        if (ticketRequested) {
+                            ticket = ticket(result);
+                        }
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                    Object[] done = result;
+                    byte[] sealed = ticket;
+                    Exception failed = failure;
+                    this.loop.execute(() -> handshaken(done, sealed, resumed, failed));
+                });
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Engine closed");
+            }
+            return false;
+        }
+
+        private byte[] ticket(Object[] result) throws IOException {
+            return SSLSocket.greetingToken(SSLServerSocket.newTicket(result, tickets));
+        }
+
+        // Loop thread: carry on from a handshake a worker has finished, then deliver the packets that came meanwhile
+        private void handshaken(Object[] result, byte[] ticket, boolean resumed, Exception failure) {
+            this.handshaking = false;
+            if (this.closed) {
+                return;
+            }
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (this.inbound != null) {
+                    this.inbound.flip();
+                }
+                if (reply(result, ticket, resumed)) {
+                    // Reading again, unless replying already saw to that
+                    flushOutbound();
+                    if (this.inbound != null) {
+                        decrypt();
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("HANDLER: " + e);
+                abort();
+            } finally {
+                if (this.closed || this.inbound != null && this.inbound.position() == 0) {
+                    releaseInbound();
+                }
+            }
+        }
+
+        // Answer the greeting; true once the session is established
+        private boolean reply(Object[] result, byte[] ticket, boolean resumed) throws IOException {
+            if (resumed) {
+                writeRaw(new byte[] { result != null ? (byte) '+' : (byte) '-' });
+                if (result == null) {
+                    close();
+                    return false;
+                }
+            } else if (ticket != null) {
+                writeRaw(ticket);
+            }
+            return established(result, resumed);
+        }
+
+        private boolean established(Object[] result, boolean resumed) throws IOException {
+            this.oneTimeKey = (byte[]) result[0];
+            this.hash = (Hash) result[1];
+            this.traffic = Metrics.get().traffic(((UserDirectory.User) result[2]).getName());
+            Metrics.get().handshakeCompleted(this.handshakeStart, resumed);
+            Metrics.get().connectionOpened();
+            this.tokens = null;
+            this.token = null;
+            this.greetingPhase = null;
+            int packetSize = this.hash.getPacketSize();
+            if (this.inbound != null && this.inbound.capacity() < packetSize) {
+                ByteBuffer grown = ByteBuffer.wrap(BufferPool.get().lease(packetSize)).put(this.inbound).flip();
+                releaseInbound();
+                this.inbound = grown;
+            }
+            handler.opened(this);
+            return true;
+        }
+
+        private void writeRaw(byte[] data) throws IOException {
+            boolean done;
+            synchronized (this) {
+                reserveOutbound(data.length);
+                this.outbound.put(data);
+                done = flush();
+            }
+            if (done) {
+                abort();
+            }
+        }
+
+        // Decrypt, verify and deliver every complete packet in inbound, leaving it ready for the next read
+        private void decrypt() throws Exception {
+            int packetSize = this.hash.getPacketSize();
+            int length = this.inbound.remaining() / packetSize * packetSize;
+            if (length > 0) {
+                byte[] array = this.inbound.array();
+                int off = this.inbound.arrayOffset() + this.inbound.position();
+                Events.Xor xor = new Events.Xor();
+                xor.begin();
+                OneTimeKey.xorPackets(array, off, length, this.oneTimeKey, packetSize);
+                xor.complete(this.connection, this.traffic.getUser(), length);
+                Events.Unpack unpack = new Events.Unpack();
+                unpack.begin();
+                int n;
+                try {
+                    n = this.hash.unpack(array, off, length, array, off);
+                    unpack.complete(this.connection, this.traffic.getUser(), length);
+                } catch (Exception e) {
+                    Metrics.get().checksumError();
+                    throw e;
+                }
+                this.traffic.unpacked(length / packetSize, n);
+                this.inbound.position(this.inbound.position() + length);
+                if (n > 0) {
+                    handler.received(this, array, off, n);
+                }
+            }
+            this.inbound.compact();
+        }
+    }
+}
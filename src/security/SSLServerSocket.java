@@ -3,15 +3,40 @@ package security;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class SSLServerSocket extends ServerSocket
 {
   protected RSA.PrivateKey sKR;
   protected Properties prop;
+  protected UserDirectory users;
+  protected SessionCache sessions;
+  protected SessionTickets tickets;
+
+  // Handshake pipeline, started by startHandshakes()
+  private Thread acceptor;
+  private ExecutorService handshakers;
+  private ScheduledExecutorService deadlines;
+  private int deadline;
+  // Bounds handshakes in progress plus established sockets nobody has picked up yet
+  private Semaphore slots;
+  private final ArrayDeque<SSLSocket> established = new ArrayDeque<>();
+  private final ArrayDeque<CompletableFuture<SSLSocket>> waiting = new ArrayDeque<>();
 
   public SSLServerSocket(int paramInt1, int paramInt2, InetAddress paramInetAddress, RSA.PrivateKey paramPrivateKey, Properties paramProperties)
     throws IOException
@@ -19,6 +44,7 @@ public class SSLServerSocket extends ServerSocket
     super(paramInt1, paramInt2, paramInetAddress);
     this.sKR = paramPrivateKey;
     this.prop = paramProperties;
+    this.users = new UserDirectory(paramProperties);
   }
 
   public SSLServerSocket(int paramInt1, int paramInt2, RSA.PrivateKey paramPrivateKey, Properties paramProperties)
@@ -27,6 +53,7 @@ public class SSLServerSocket extends ServerSocket
     super(paramInt1, paramInt2);
     this.sKR = paramPrivateKey;
     this.prop = paramProperties;
+    this.users = new UserDirectory(paramProperties);
   }
 
   public SSLServerSocket(int paramInt, RSA.PrivateKey paramPrivateKey, Properties paramProperties)
@@ -35,22 +62,219 @@ public class SSLServerSocket extends ServerSocket
     super(paramInt);
     this.sKR = paramPrivateKey;
     this.prop = paramProperties;
+    this.users = new UserDirectory(paramProperties);
+  }
+
+  public SSLServerSocket(int paramInt1, int paramInt2, InetAddress paramInetAddress, RSA.PrivateKey paramPrivateKey, UserDirectory paramUserDirectory)
+    throws IOException
+  {
+    super(paramInt1, paramInt2, paramInetAddress);
+    this.sKR = paramPrivateKey;
+    this.users = paramUserDirectory;
+  }
+
+  public SSLServerSocket(int paramInt, RSA.PrivateKey paramPrivateKey, UserDirectory paramUserDirectory)
+    throws IOException
+  {
+    super(paramInt);
+    this.sKR = paramPrivateKey;
+    this.users = paramUserDirectory;
   }
 
   public Socket accept()
     throws IOException
   {
+    if (this.handshakers != null) {
+      CompletableFuture<SSLSocket> localCompletableFuture = acceptAsync();
+      try {
+        return localCompletableFuture.get();
+      } catch (InterruptedException localInterruptedException) {
+        // Withdraw from the queue so the next socket goes to a caller that is still waiting; if one was
+        // delivered in the meantime it is ours, and the interrupt is left for the caller to see
+        if ((!localCompletableFuture.cancel(false)) && (!localCompletableFuture.isCompletedExceptionally())) {
+          Thread.currentThread().interrupt();
+          return localCompletableFuture.join();
+        }
+        synchronized (this.established) {
+          this.waiting.remove(localCompletableFuture);
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a handshake");
+      } catch (ExecutionException localExecutionException) {
+        if ((localExecutionException.getCause() instanceof IOException)) {
+          throw (IOException)localExecutionException.getCause();
+        }
+        throw new IOException(localExecutionException.getCause().toString());
+      }
+    }
     Socket localSocket = super.accept();
-    byte[] arrayOfByte = null;
-    Hash localHash = null;
+    Object[] arrayOfObject;
     try {
-      Object[] arrayOfObject = handshake(localSocket);
-      arrayOfByte = (byte[])arrayOfObject[0];
-      localHash = (Hash)arrayOfObject[1];
+      arrayOfObject = handshake(localSocket);
     } catch (Exception localException) {
       throw new IOException(localException.toString());
     }
-    return new SSLSocket(localSocket, arrayOfByte, localHash);
+    return newSocket(localSocket, arrayOfObject);
+  }
+
+  // Remember sessions from full handshakes so clients can resume them; null turns resumption off
+  public void setSessionCache(SessionCache paramSessionCache)
+  {
+    this.sessions = paramSessionCache;
+  }
+
+  public SessionCache getSessionCache()
+  {
+    return this.sessions;
+  }
+
+  // Issue tickets to clients that ask for one and accept them from any node sharing the secret; null turns tickets off
+  public void setSessionTickets(SessionTickets paramSessionTickets)
+  {
+    this.tickets = paramSessionTickets;
+  }
+
+  // Hand out the next fully established socket; handshakes run on the worker threads of startHandshakes(), which must come first
+  public CompletableFuture<SSLSocket> acceptAsync()
+  {
+    if (this.handshakers == null) {
+      throw new IllegalStateException("startHandshakes() has not been called");
+    }
+    CompletableFuture<SSLSocket> localCompletableFuture = new CompletableFuture<>();
+    synchronized (this.established) {
+      SSLSocket localSSLSocket = this.established.poll();
+      if (localSSLSocket != null) {
+        this.slots.release();
+        localCompletableFuture.complete(localSSLSocket);
+      } else if (isClosed()) {
+        localCompletableFuture.completeExceptionally(new SocketException("Socket is closed"));
+      } else {
+        this.waiting.add(localCompletableFuture);
+      }
+    }
+    return localCompletableFuture;
+  }
+
+  // Start accepting on a dedicated thread and handshaking on paramInt1 workers, each handshake
+  // bounded by paramInt2 milliseconds, with at most paramInt3 established sockets waiting to be picked up
+  public synchronized void startHandshakes(int paramInt1, int paramInt2, int paramInt3)
+  {
+    if (this.handshakers != null) {
+      return;
+    }
+    this.deadline = paramInt2;
+    this.slots = new Semaphore(paramInt1 + paramInt3);
+    this.handshakers = Executors.newFixedThreadPool(paramInt1, paramRunnable -> {
+      Thread localThread = new Thread(paramRunnable, "ssl-handshake");
+      localThread.setDaemon(true);
+      return localThread;
+    });
+    this.deadlines = Executors.newSingleThreadScheduledExecutor(paramRunnable -> {
+      Thread localThread = new Thread(paramRunnable, "ssl-handshake-deadline");
+      localThread.setDaemon(true);
+      return localThread;
+    });
+    this.acceptor = new Thread(this::acceptLoop, "ssl-acceptor");
+    this.acceptor.setDaemon(true);
+    this.acceptor.start();
+  }
+
+  public void close()
+    throws IOException
+  {
+    super.close();
+    if (this.handshakers == null) {
+      return;
+    }
+    this.handshakers.shutdownNow();
+    this.deadlines.shutdownNow();
+    synchronized (this.established) {
+      SSLSocket localSSLSocket;
+      while ((localSSLSocket = this.established.poll()) != null) {
+        localSSLSocket.close();
+      }
+      CompletableFuture<SSLSocket> localCompletableFuture;
+      while ((localCompletableFuture = this.waiting.poll()) != null) {
+        localCompletableFuture.completeExceptionally(new SocketException("Socket is closed"));
+      }
+    }
+  }
+
+  private void acceptLoop()
+  {
+    while (!isClosed()) {
+      Socket localSocket;
+      try {
+        this.slots.acquire();
+      } catch (InterruptedException localInterruptedException) {
+        return;
+      }
+      try {
+        localSocket = super.accept();
+      } catch (IOException localIOException) {
+        this.slots.release();
+        if (!isClosed()) {
+          System.out.println("SERVER: " + localIOException);
+        }
+        continue;
+      }
+      this.handshakers.execute(() -> establish(localSocket));
+    }
+  }
+
+  private void establish(Socket paramSocket)
+  {
+    // Reads time out individually, and the socket is closed outright when the whole handshake overruns
+    ScheduledFuture<?> localScheduledFuture = this.deadlines.schedule(() -> {
+      try {
+        paramSocket.close();
+      } catch (IOException localIOException) {
+      }
+    }, this.deadline, TimeUnit.MILLISECONDS);
+    try {
+      paramSocket.setSoTimeout(this.deadline);
+      Object[] arrayOfObject = handshake(paramSocket);
+      paramSocket.setSoTimeout(0);
+      if (!localScheduledFuture.cancel(false)) {
+        throw new SocketException("Socket closed");
+      }
+      deliver(newSocket(paramSocket, arrayOfObject));
+    } catch (Exception localException) {
+      if (!localScheduledFuture.cancel(false) && !localScheduledFuture.isCancelled()) {
+        localException = new SocketTimeoutException("Handshake deadline exceeded");
+      }
+      this.slots.release();
+      try {
+        paramSocket.close();
+      } catch (IOException localIOException) {
+      }
+      System.out.println("SERVER: " + localException);
+    }
+  }
+
+  private void deliver(SSLSocket paramSSLSocket)
+    throws IOException
+  {
+    synchronized (this.established) {
+      if (isClosed()) {
+        paramSSLSocket.close();
+        return;
+      }
+      CompletableFuture<SSLSocket> localCompletableFuture;
+      while ((localCompletableFuture = this.waiting.poll()) != null) {
+        if (localCompletableFuture.complete(paramSSLSocket)) {
+          this.slots.release();
+          return;
+        }
+      }
+      this.established.add(paramSSLSocket);
+    }
+  }
+
+  private static SSLSocket newSocket(Socket paramSocket, Object[] paramArrayOfObject)
+    throws IOException
+  {
+    return new SSLSocket(paramSocket, (byte[])paramArrayOfObject[0], (Hash)paramArrayOfObject[1], ((UserDirectory.User)paramArrayOfObject[2]).getName());
   }
 
   protected byte[] getGreetingToken(Socket paramSocket)
@@ -79,39 +303,146 @@ public class SSLServerSocket extends ServerSocket
     return arrayOfByte;
   }
 
+  // Handshake with a newly accepted client and return { one-time key, Hash, user }
   protected Object[] handshake(Socket paramSocket)
     throws Exception
   {
+    long l = System.nanoTime();
+    Metrics.get().handshakeStarted();
+    try {
+      return greeting(paramSocket, l);
+    } catch (Exception localException) {
+      Metrics.get().handshakeFailed();
+      throw localException;
+    }
+  }
+
+  private Object[] greeting(Socket paramSocket, long paramLong)
+    throws Exception
+  {
+    String str = String.valueOf(paramSocket.getRemoteSocketAddress());
+    Events.HandshakePhase localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
     int i;
     while ((i = paramSocket.getInputStream().read()) != 33) {
       if (i == -1) throw new EOFException("Unfinished Greeting");
     }
     byte[] arrayOfByte1 = getGreetingToken(paramSocket);
+
+    // An empty first token asks to resume the session or ticket in the second, answered by '+' (43) or '-' (45)
+    // in the clear; two empty tokens ask for a full handshake followed by a ticket
+    boolean bool = false;
+    if (arrayOfByte1.length == 0) {
+      byte[] arrayOfByte4 = getGreetingToken(paramSocket);
+      if (arrayOfByte4.length != 0) {
+        localHandshakePhase.complete("greeting", str, null, arrayOfByte4.length);
+        Object[] arrayOfObject = resume(arrayOfByte4, this.sessions, this.tickets, this.users, str);
+        paramSocket.getOutputStream().write(arrayOfObject != null ? 43 : 45);
+        paramSocket.getOutputStream().flush();
+        if (arrayOfObject == null) {
+          throw new Exception("Unknown Session");
+        }
+        Metrics.get().handshakeCompleted(paramLong, true);
+        return arrayOfObject;
+      }
+      bool = true;
+      arrayOfByte1 = getGreetingToken(paramSocket);
+    }
+
     byte[] arrayOfByte2 = getGreetingToken(paramSocket);
     byte[] arrayOfByte3 = getGreetingToken(paramSocket);
+    localHandshakePhase.complete("greeting", str, null, arrayOfByte1.length + arrayOfByte2.length + arrayOfByte3.length);
 
-    String str1 = new String(RSA.cipher(arrayOfByte1, this.sKR));
+    Object[] arrayOfObject = handshake(arrayOfByte1, arrayOfByte2, arrayOfByte3, this.sKR, this.users, str);
+    if (this.sessions != null) {
+      this.sessions.put(newSession(arrayOfObject));
+    }
+    if (bool) {
+      paramSocket.getOutputStream().write(SSLSocket.greetingToken(newTicket(arrayOfObject, this.tickets)));
+      paramSocket.getOutputStream().flush();
+    }
+    Metrics.get().handshakeCompleted(paramLong, false);
+    return arrayOfObject;
+  }
 
-    String str2 = this.prop.getProperty(str1 + ".public_key");
+  // An empty ticket tells the client this server does not issue them
+  static byte[] newTicket(Object[] paramArrayOfObject, SessionTickets paramSessionTickets)
+    throws IOException
+  {
+    if (paramSessionTickets == null) {
+      return new byte[0];
+    }
+    return paramSessionTickets.seal(newSession(paramArrayOfObject));
+  }
+
+  static SSLSession newSession(Object[] paramArrayOfObject)
+  {
+    return new SSLSession((byte[])paramArrayOfObject[0], (Hash)paramArrayOfObject[1], ((UserDirectory.User)paramArrayOfObject[2]).getName());
+  }
 
-    if (str2 == null)
+  // Look up a session id or open a ticket and return { one-time key, Hash, user } as a full handshake would, or null
+  static Object[] resume(byte[] paramArrayOfByte, SessionCache paramSessionCache, SessionTickets paramSessionTickets, UserDirectory paramUserDirectory, String paramString)
+  {
+    Events.HandshakePhase localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
+    SSLSession localSSLSession;
+    if (SSLSession.isId(paramArrayOfByte)) {
+      localSSLSession = paramSessionCache != null ? paramSessionCache.get(paramArrayOfByte) : null;
+    } else {
+      localSSLSession = paramSessionTickets != null ? paramSessionTickets.open(paramArrayOfByte) : null;
+    }
+    localHandshakePhase.complete(SSLSession.isId(paramArrayOfByte) ? "session lookup" : "ticket open", paramString,
+      localSSLSession != null ? localSSLSession.getUserName() : null, paramArrayOfByte.length);
+    if (localSSLSession == null) {
+      return null;
+    }
+    // Users removed from the directory lose their sessions too
+    UserDirectory.User localUser = paramUserDirectory.get(localSSLSession.getUserName());
+    if (localUser == null) {
+      if (SSLSession.isId(paramArrayOfByte)) {
+        paramSessionCache.remove(paramArrayOfByte);
+      }
+      return null;
+    }
+    return new Object[] { localSSLSession.getKey(), localSSLSession.getHash(), localUser };
+  }
+
+  // Check the three greeting tokens (name, company, one-time key) and return { one-time key, Hash, user };
+  // paramString names the connection in Flight Recorder events
+  static Object[] handshake(byte[] paramArrayOfByte1, byte[] paramArrayOfByte2, byte[] paramArrayOfByte3, RSA.PrivateKey paramPrivateKey, UserDirectory paramUserDirectory, String paramString)
+    throws Exception
+  {
+    Events.HandshakePhase localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
+    String str1 = new String(RSA.cipher(paramArrayOfByte1, paramPrivateKey));
+    localHandshakePhase.complete("rsa name", paramString, null, paramArrayOfByte1.length);
+
+    localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
+    UserDirectory.User localUser = paramUserDirectory.get(str1);
+    localHandshakePhase.complete("user lookup", paramString, str1, 0L);
+
+    if (localUser == null)
       throw new Exception("Unknown User: " + str1);
-    RSA.PublicKey localPublicKey = new RSA.PublicKey(str2.getBytes());
 
-    String str3 = new String(RSA.cipher(arrayOfByte2, localPublicKey));
+    localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
+    String str2 = new String(RSA.cipher(paramArrayOfByte2, localUser.getPublicKey()));
+    localHandshakePhase.complete("rsa company", paramString, str1, paramArrayOfByte2.length);
 
-    if (!str3.equals(this.prop.getProperty(str1 + ".company"))) {
-      throw new Exception("Company ERROR (" + str1 + ':' + str3 + ")");
+    if (!str2.equals(localUser.getCompany())) {
+      throw new Exception("Company ERROR (" + str1 + ':' + str2 + ")");
     }
-    int j = Integer.parseInt(this.prop.getProperty(str1 + ".ndatabytes"));
-    int k = Integer.parseInt(this.prop.getProperty(str1 + ".ncheckbytes"));
-    byte b = (byte)Integer.parseInt(this.prop.getProperty(str1 + ".pattern"));
-    int m = Integer.parseInt(this.prop.getProperty(str1 + ".k"));
-    Object[] arrayOfObject = new Object[2];
+    Object[] arrayOfObject = new Object[3];
+
+    localHandshakePhase = new Events.HandshakePhase();
+    localHandshakePhase.begin();
+    arrayOfObject[0] = OneTimeKey.restoreKey(RSA.cipher(paramArrayOfByte3, paramPrivateKey), localUser.getHash(), paramPrivateKey);
+    localHandshakePhase.complete("rsa key", paramString, str1, paramArrayOfByte3.length);
 
-    arrayOfObject[0] = RSA.cipher(arrayOfByte3, this.sKR);
+    arrayOfObject[1] = localUser.getHash();
 
-    arrayOfObject[1] = new Hash(j, k, b, m);
+    arrayOfObject[2] = localUser;
     return arrayOfObject;
   }
-}
\ No newline at end of file
+}
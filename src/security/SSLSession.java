@@ -0,0 +1,91 @@
+package security;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// The state a connection can be resumed with: the one-time key and Hash agreed in a full handshake.
+// Both ends derive the same id from the key, so nothing extra is sent during the handshake itself.
+public class SSLSession {
+    private static final int ID_LENGTH = 16;
+
+    private final byte[] id;
+    private final byte[] key;
+    private final Hash hash;
+    private final String userName;
+    private final byte[] ticket;
+    private final long creationTime;
+
+    public SSLSession(byte[] key, Hash hash) {
+        this(key, hash, null);
+    }
+
+    public SSLSession(byte[] key, Hash hash, String userName) {
+        this(key, hash, userName, null);
+    }
+
+    public SSLSession(byte[] key, Hash hash, String userName, byte[] ticket) {
+        this.id = idFor(key);
+        this.key = key;
+        this.hash = hash;
+        this.userName = userName;
+        this.ticket = ticket;
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    public byte[] getId() {
+        return this.id;
+    }
+
+    public byte[] getKey() {
+        return this.key;
+    }
+
+    public Hash getHash() {
+        return this.hash;
+    }
+
+    // Only known on the server side
+    public String getUserName() {
+        return this.userName;
+    }
+
+    // Sealed copy of the session issued by the server, if the client asked for one
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+
+    // What a client presents to resume: the ticket when it has one, which any node can open, otherwise the id
+    public byte[] getResumeToken() {
+        return this.ticket != null ? this.ticket : this.id;
+    }
+
+    public static boolean isId(byte[] token) {
+        return token.length == ID_LENGTH;
+    }
+
+    public long getCreationTime() {
+        return this.creationTime;
+    }
+
+    // One-way, so the id sent in the clear reveals nothing about the key
+    public static byte[] idFor(byte[] key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("simplified_ssl session".getBytes());
+            return Arrays.copyOf(digest.digest(key), ID_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Thrown to a client whose session the server no longer knows; it should do a full handshake
+    public static class ExpiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ExpiredException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package security;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SSLSocket extends Socket
 {
@@ -13,6 +23,10 @@ public class SSLSocket extends Socket
   protected InputStream cryptoIn;
   protected OutputStream cryptoOut;
   protected Socket socket;
+  protected byte[] ticket;
+  protected Metrics.Traffic traffic = Metrics.get().traffic(null);
+  // Set while a server-side connection counts towards Metrics' active connections
+  private final AtomicBoolean active = new AtomicBoolean();
 
   public SSLSocket(String paramString, int paramInt1, InetAddress paramInetAddress, int paramInt2, byte[] paramArrayOfByte1, byte[] paramArrayOfByte2, byte[] paramArrayOfByte3, byte[] paramArrayOfByte4, Hash paramHash)
     throws IOException
@@ -50,6 +64,37 @@ public class SSLSocket extends Socket
     this.hash = paramHash;
   }
 
+  // Full handshake that also asks the server for a session ticket, see getSession()
+  public SSLSocket(String paramString, int paramInt, byte[] paramArrayOfByte1, byte[] paramArrayOfByte2, byte[] paramArrayOfByte3, byte[] paramArrayOfByte4, Hash paramHash, boolean paramBoolean)
+    throws IOException
+  {
+    super(paramString, paramInt);
+    if (paramBoolean) {
+      // Two empty tokens ahead of the usual three ask for a ticket once the handshake succeeds
+      super.getOutputStream().write(new byte[] { 33, 33 });
+    }
+    handshake(paramArrayOfByte1, paramArrayOfByte2, paramArrayOfByte3);
+    if (paramBoolean) {
+      this.ticket = readGreetingToken(super.getInputStream());
+      if (this.ticket.length == 0) {
+        this.ticket = null;
+      }
+    }
+    this.key = paramArrayOfByte4;
+    this.hash = paramHash;
+  }
+
+  // Resume an earlier session instead of a full handshake; throws SSLSession.ExpiredException if the server has forgotten it
+  public SSLSocket(String paramString, int paramInt, SSLSession paramSSLSession)
+    throws IOException
+  {
+    super(paramString, paramInt);
+    resume(paramSSLSession.getResumeToken());
+    this.ticket = paramSSLSession.getTicket();
+    this.key = paramSSLSession.getKey();
+    this.hash = paramSSLSession.getHash();
+  }
+
   public SSLSocket(Socket paramSocket, byte[] paramArrayOfByte, Hash paramHash)
     throws IOException
   {
@@ -58,14 +103,49 @@ public class SSLSocket extends Socket
     this.hash = paramHash;
   }
 
+  // Server side of a connection established for user paramString, whose traffic it is counted against
+  public SSLSocket(Socket paramSocket, byte[] paramArrayOfByte, Hash paramHash, String paramString)
+    throws IOException
+  {
+    this(paramSocket, paramArrayOfByte, paramHash);
+    this.traffic = Metrics.get().traffic(paramString);
+    this.active.set(true);
+    Metrics.get().connectionOpened();
+  }
+
   public void close()
     throws IOException
   {
-    if (this.socket == null) {
-      super.close();
+    // Socket's constructors call close() when the connect fails, before the fields here are initialized
+    if ((this.active != null) && (this.active.compareAndSet(true, false))) {
+      Metrics.get().connectionClosed();
+    }
+    try {
+      if (this.socket == null) {
+        super.close();
+      } else {
+        this.socket.close();
+      }
+    } finally {
+      // Closing the socket wakes any blocked reader; the stream buffers go back to the pool once it is out
+      if (this.cryptoIn instanceof CryptoInputStream) {
+        ((CryptoInputStream)this.cryptoIn).release();
+      }
+      if (this.cryptoOut instanceof CryptoOutputStream) {
+        ((CryptoOutputStream)this.cryptoOut).release();
+      }
+    }
+  }
+
+  // A server-side socket wraps the accepted one, which is where the option belongs
+  public void setTcpNoDelay(boolean paramBoolean)
+    throws SocketException
+  {
+    if (this.socket != null) {
+      this.socket.setTcpNoDelay(paramBoolean);
       return;
     }
-    this.socket.close();
+    super.setTcpNoDelay(paramBoolean);
   }
 
   public InputStream getCryptedInputStream()
@@ -83,7 +163,9 @@ public class SSLSocket extends Socket
     if (this.cryptoIn == null) {
       InputStream localInputStream = 
         this.socket != null ? this.socket.getInputStream() : super.getInputStream();
-      this.cryptoIn = new CryptoInputStream(localInputStream, this.key, this.hash);
+      CryptoInputStream localCryptoInputStream = new CryptoInputStream(localInputStream, this.key, this.hash, this.traffic);
+      localCryptoInputStream.setConnection(connectionName());
+      this.cryptoIn = localCryptoInputStream;
     }
     return this.cryptoIn;
   }
@@ -92,11 +174,49 @@ public class SSLSocket extends Socket
     if (this.cryptoOut == null) {
       OutputStream localOutputStream = 
         this.socket != null ? this.socket.getOutputStream() : super.getOutputStream();
-      this.cryptoOut = new CryptoOutputStream(localOutputStream, this.key, this.hash);
+      CryptoOutputStream localCryptoOutputStream = new CryptoOutputStream(localOutputStream, this.key, this.hash, this.traffic);
+      localCryptoOutputStream.setConnection(connectionName());
+      this.cryptoOut = localCryptoOutputStream;
     }
     return this.cryptoOut;
   }
 
+  // Send a whole file as its 8-byte length followed by its contents, for receiveFile() at the other end.
+  // The file is read through a FileChannel into one reusable buffer, so heap use does not grow with its size.
+  public long sendFile(Path paramPath)
+    throws IOException
+  {
+    try (FileChannel localFileChannel = FileChannel.open(paramPath, StandardOpenOption.READ)) {
+      long l1 = localFileChannel.size();
+      CryptoOutputStream localCryptoOutputStream = (CryptoOutputStream)getOutputStream();
+      new DataOutputStream(localCryptoOutputStream).writeLong(l1);
+      long l2 = localCryptoOutputStream.transferFrom(localFileChannel, l1);
+      localCryptoOutputStream.flush();
+      if (l2 != l1) {
+        throw new IOException("File changed while sending: " + paramPath);
+      }
+      return l2;
+    }
+  }
+
+  // Receive a file sent with sendFile(), replacing paramPath; packets are verified and written from the decrypt buffer
+  public long receiveFile(Path paramPath)
+    throws IOException
+  {
+    CryptoInputStream localCryptoInputStream = (CryptoInputStream)getInputStream();
+    long l1 = new DataInputStream(localCryptoInputStream).readLong();
+    if (l1 < 0L) {
+      throw new IOException("Bad file length " + l1);
+    }
+    try (FileChannel localFileChannel = FileChannel.open(paramPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      long l2 = localCryptoInputStream.transferTo(localFileChannel, l1);
+      if (l2 != l1) {
+        throw new EOFException("File ended after " + l2 + " of " + l1 + " bytes");
+      }
+      return l2;
+    }
+  }
+
   protected void handshake(byte[] paramArrayOfByte1, byte[] paramArrayOfByte2, byte[] paramArrayOfByte3)
     throws IOException
   {
@@ -136,6 +256,57 @@ public class SSLSocket extends Socket
     super.getOutputStream().flush();
   }
 
+  // Session this connection can later be resumed with
+  public SSLSession getSession()
+  {
+    return new SSLSession(this.key, this.hash, null, this.ticket);
+  }
+
+  // A greeting token with '!' and '\' escaped, followed by its terminating '!'
+  static byte[] greetingToken(byte[] paramArrayOfByte)
+  {
+    byte[] arrayOfByte = new byte[2 * paramArrayOfByte.length + 1];
+    int i = 0;
+    for (int j = 0; j < paramArrayOfByte.length; j++) {
+      if ((paramArrayOfByte[j] == 33) || (paramArrayOfByte[j] == 92)) arrayOfByte[(i++)] = 92;
+      arrayOfByte[(i++)] = paramArrayOfByte[j];
+    }
+    arrayOfByte[(i++)] = 33;
+    return Arrays.copyOf(arrayOfByte, i);
+  }
+
+  static byte[] readGreetingToken(InputStream paramInputStream)
+    throws IOException
+  {
+    ByteArrayOutputStream localByteArrayOutputStream = new ByteArrayOutputStream();
+    int i;
+    while ((i = paramInputStream.read()) != 33) {
+      if ((i == 92) && ((i = paramInputStream.read()) == -1)) i = -1;
+      if (i == -1) throw new EOFException("Unexpected end of Greeting");
+      localByteArrayOutputStream.write(i);
+    }
+    return localByteArrayOutputStream.toByteArray();
+  }
+
+  protected void resume(byte[] paramArrayOfByte)
+    throws IOException
+  {
+    super.getOutputStream().write(new byte[] { 33, 33 });
+    super.getOutputStream().write(greetingToken(paramArrayOfByte));
+    super.getOutputStream().flush();
+
+    if (super.getInputStream().read() != 43) {
+      super.close();
+      throw new SSLSession.ExpiredException("Session not resumed");
+    }
+  }
+
+  // Remote address, as Flight Recorder events name the connection
+  String connectionName()
+  {
+    return String.valueOf(this.socket != null ? this.socket.getRemoteSocketAddress() : super.getRemoteSocketAddress());
+  }
+
   public String toString()
   {
     return "Cryto(" + this.socket + ')';
@@ -0,0 +1,115 @@
+package security;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-side sessions by id, bounded in size (least recently used goes first) and in age.
+// The map is split into independently locked segments so concurrent handshakes rarely contend.
+public class SessionCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SessionCache(int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(segmentCapacity, this.evictions);
+        }
+    }
+
+    public void put(SSLSession session) {
+        ByteBuffer id = ByteBuffer.wrap(session.getId());
+        Segment segment = segmentFor(id);
+        synchronized (segment) {
+            segment.put(id, session);
+        }
+    }
+
+    // The live session with this id, or null
+    public SSLSession get(byte[] id) {
+        ByteBuffer key = ByteBuffer.wrap(id);
+        Segment segment = segmentFor(key);
+        SSLSession session;
+        synchronized (segment) {
+            session = segment.get(key);
+            if (session != null && System.currentTimeMillis() - session.getCreationTime() > this.ttlMillis) {
+                segment.remove(key);
+                this.evictions.increment();
+                session = null;
+            }
+        }
+        if (session == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return session;
+    }
+
+    public void remove(byte[] id) {
+        ByteBuffer key = ByteBuffer.wrap(id);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "sessions=" + size() + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+    private Segment segmentFor(ByteBuffer id) {
+        return this.segments[id.hashCode() & (SEGMENTS - 1)];
+    }
+
+    private static class Segment extends LinkedHashMap<ByteBuffer, SSLSession> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SSLSession> eldest) {
+            if (size() > this.capacity) {
+                this.evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Stateless resumption: a session sealed with AES-GCM under a key that only the servers know.
+// Every rotation period gets its own key, derived from a secret shared by all nodes, so any node
+// can open a ticket another node issued and no key distribution is needed when keys rotate.
+public class SessionTickets {
+    private static final int EPOCH_LENGTH = 8;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final byte[] secret;
+    private final long rotationMillis;
+    private final long lifetimeMillis;
+    private final ConcurrentMap<Long, SecretKeySpec> keys = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    public SessionTickets(byte[] secret, long rotationMillis, long lifetimeMillis) {
+        this.secret = secret.clone();
+        this.rotationMillis = rotationMillis;
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    // Ticket = epoch | nonce | AES-GCM(expiry, user, Hash parameters, record format and codec, one-time key), with the epoch as associated data
+    public byte[] seal(SSLSession session) throws IOException {
+        long now = System.currentTimeMillis();
+        long epoch = now / this.rotationMillis;
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        Hash hash = session.getHash();
+        out.writeLong(now + this.lifetimeMillis);
+        out.writeUTF(session.getUserName());
+        out.writeInt(hash.getNumberOfDataBytes());
+        out.writeInt(hash.getNumberOfCheckBytes());
+        out.writeByte(hash.getPattern());
+        out.writeInt(hash.getK());
+        out.writeByte(hash.getFormat());
+        out.writeUTF(hash.getIntegrityCodec().getName());
+        out.writeShort(session.getKey().length);
+        out.write(session.getKey());
+
+        byte[] ticket = new byte[EPOCH_LENGTH + NONCE_LENGTH + plain.size() + TAG_BITS / 8];
+        ByteBuffer.wrap(ticket).putLong(epoch);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, ticket, EPOCH_LENGTH, NONCE_LENGTH);
+        try {
+            Cipher cipher = this.ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, keyFor(epoch), new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(ticket, 0, EPOCH_LENGTH);
+            cipher.doFinal(plain.toByteArray(), 0, plain.size(), ticket, EPOCH_LENGTH + NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.toString());
+        }
+        return ticket;
+    }
+
+    // The session sealed in ticket, or null if it is forged, damaged, from a retired key or expired
+    public SSLSession open(byte[] ticket) {
+        if (ticket.length <= EPOCH_LENGTH + NONCE_LENGTH + TAG_BITS / 8) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long epoch = ByteBuffer.wrap(ticket).getLong();
+        long current = now / this.rotationMillis;
+        if (epoch > current || (current - epoch) * this.rotationMillis > this.lifetimeMillis + this.rotationMillis) {
+            return null;
+        }
+        try {
+            Cipher cipher = this.ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, keyFor(epoch), new GCMParameterSpec(TAG_BITS, ticket, EPOCH_LENGTH, NONCE_LENGTH));
+            cipher.updateAAD(ticket, 0, EPOCH_LENGTH);
+            byte[] plain = cipher.doFinal(ticket, EPOCH_LENGTH + NONCE_LENGTH, ticket.length - EPOCH_LENGTH - NONCE_LENGTH);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+            if (in.readLong() < now) {
+                return null;
+            }
+            String userName = in.readUTF();
+            int dataBytes = in.readInt();
+            int checkBytes = in.readInt();
+            byte pattern = in.readByte();
+            int k = in.readInt();
+            int format = in.readByte();
+            Hash hash = new Hash(dataBytes, checkBytes, pattern, k, format, IntegrityCodec.forName(in.readUTF(), pattern, k, checkBytes));
+            byte[] key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            return new SSLSession(key, hash, userName);
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // HMAC-SHA256(secret, epoch) truncated to an AES-128 key, worked out once per epoch
+    private SecretKeySpec keyFor(long epoch) throws GeneralSecurityException {
+        SecretKeySpec key = this.keys.get(epoch);
+        if (key != null) {
+            return key;
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(this.secret, "HmacSHA256"));
+        mac.update("simplified_ssl ticket".getBytes());
+        byte[] derived = mac.doFinal(ByteBuffer.allocate(EPOCH_LENGTH).putLong(epoch).array());
+        key = new SecretKeySpec(derived, 0, 16, "AES");
+        // Retired epochs are never needed again
+        this.keys.keySet().removeIf(e -> e < epoch - 2 - this.lifetimeMillis / this.rotationMillis);
+        this.keys.put(epoch, key);
+        return key;
+    }
+
+    // Two server nodes sharing a secret: a full handshake with one, ticket resumption with the other
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("java security.SessionTickets <secret> <name>");
+            System.out.println("   - run from the directory holding private_key.txt, users.txt and <name>.txt");
+            System.exit(1);
+        }
+        byte[] secret = args[0].getBytes();
+        String name = args[1];
+
+        RSA.PrivateKey serverPrivateKey;
+        try (InputStream inputStream = new FileInputStream("private_key.txt")) {
+            serverPrivateKey = new RSA.PrivateKey(inputStream);
+        }
+        Properties users = new Properties();
+        try (InputStream inputStream = new FileInputStream("users.txt")) {
+            users.load(inputStream);
+        }
+        Properties client = new Properties();
+        try (InputStream inputStream = new FileInputStream(name + ".txt")) {
+            client.load(inputStream);
+        }
+
+        SSLServerSocket[] nodes = new SSLServerSocket[2];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new SSLServerSocket(0, serverPrivateKey, users);
+            nodes[i].setSessionTickets(new SessionTickets(secret, 3600000L, 86400000L));
+            nodes[i].startHandshakes(1, 10000, 16);
+        }
+
+        Hash hash = Hash.load(client, "");
+        RSA.PublicKey serverPublicKey = new RSA.PublicKey(client.getProperty("server.public_key").getBytes());
+        RSA.PrivateKey privateKey = new RSA.PrivateKey(client.getProperty("private_key").getBytes());
+        byte[] oneTimeKey = OneTimeKey.newKey(hash, serverPublicKey);
+
+        long start = System.nanoTime();
+        SSLSocket socket = new SSLSocket("localhost", nodes[0].getLocalPort(), RSA.cipher(name.getBytes(), serverPublicKey),
+                RSA.cipher(client.getProperty("company").getBytes(), privateKey), RSA.cipher(oneTimeKey, serverPublicKey), oneTimeKey, hash, true);
+        nodes[0].accept().close();
+        socket.close();
+        System.out.println("Full handshake with node 0: " + (System.nanoTime() - start) / 1000 + "us");
+
+        SSLSession session = socket.getSession();
+        start = System.nanoTime();
+        socket = new SSLSocket("localhost", nodes[1].getLocalPort(), session);
+        nodes[1].accept().close();
+        socket.close();
+        System.out.println("Ticket resumption with node 1: " + (System.nanoTime() - start) / 1000 + "us");
+
+        SessionTickets tickets = new SessionTickets(secret, 3600000L, 86400000L);
+        int rounds = 100000;
+        for (int round = 0; round < 2; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                if (tickets.open(session.getTicket()) == null) {
+                    throw new IllegalStateException("Ticket rejected");
+                }
+            }
+            System.out.println("Ticket validation: " + (System.nanoTime() - start) / rounds / 1000.0 + "us");
+        }
+
+        for (SSLServerSocket node : nodes) {
+            node.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package security;
+
+// A step a server applies to each block of decrypted request data before sending it back. Blocks arrive
+// as whole decrypted batches, so a transform should be a plain loop over the array; it works in place and
+// returns how many bytes of data[off..) to send, which may be fewer than it was given but not more.
+public interface Transform {
+    int apply(byte[] data, int off, int len);
+
+    Transform IDENTITY = (data, off, len) -> len;
+
+    // Swap the case of ASCII letters. Branch-free, so the JIT can vectorize the loop.
+    Transform CASE_FLIP = (data, off, len) -> {
+        for (int i = off; i < off + len; i++) {
+            int b = data[i];
+            // 0..25 exactly for letters; bytes from 0x80 up are negative and never match
+            int letter = (b | 0x20) - 'a';
+            int isLetter = ((letter | (25 - letter)) >>> 31) ^ 1;
+            data[i] = (byte) (b ^ (isLetter << 5));
+        }
+        return len;
+    };
+
+    default Transform andThen(Transform next) {
+        return (data, off, len) -> next.apply(data, off, apply(data, off, len));
+    }
+
+    // case_flip, identity, or the name of a Transform class with a public no-argument constructor
+    static Transform forName(String name) throws ReflectiveOperationException {
+        switch (name) {
+            case "case_flip":
+                return CASE_FLIP;
+            case "identity":
+                return IDENTITY;
+            default:
+                return (Transform) Class.forName(name).getConstructor().newInstance();
+        }
+    }
+}
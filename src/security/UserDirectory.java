@@ -0,0 +1,139 @@
+package security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Users known to the server, parsed once from the <name>.<field> entries of users.txt.
+// When backed by a file it can reload itself; lookups always see either the old or the new set, never a mix.
+public class UserDirectory implements Closeable {
+    private volatile Map<String, User> users;
+    private Path file;
+    private FileTime lastModified;
+    private long lastSize;
+    private ScheduledExecutorService watcher;
+
+    public UserDirectory(Properties properties) {
+        this.users = parse(properties);
+    }
+
+    public UserDirectory(Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    public User get(String name) {
+        return this.users.get(name);
+    }
+
+    public int size() {
+        return this.users.size();
+    }
+
+    // Re-read the file if it changed since the last load; returns true if a new set was installed
+    public synchronized boolean reload() throws IOException {
+        if (this.file == null) {
+            return false;
+        }
+        FileTime modified = Files.getLastModifiedTime(this.file);
+        long size = Files.size(this.file);
+        if (modified.equals(this.lastModified) && size == this.lastSize) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(this.file)) {
+            properties.load(inputStream);
+        }
+        this.users = parse(properties);
+        this.lastModified = modified;
+        this.lastSize = size;
+        return true;
+    }
+
+    // Check the file for changes every intervalMillis on a background thread
+    public synchronized void watch(long intervalMillis) {
+        if (this.file == null || this.watcher != null) {
+            return;
+        }
+        this.watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-directory-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (reload()) {
+                    System.out.println("SERVER: reloaded " + this.file + " (" + size() + " users)");
+                }
+            } catch (IOException e) {
+                System.out.println("SERVER: keeping previous users, " + e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.watcher != null) {
+            this.watcher.shutdownNow();
+            this.watcher = null;
+        }
+    }
+
+    private static Map<String, User> parse(Properties properties) {
+        Map<String, User> users = new ConcurrentHashMap<>();
+        for (String property : properties.stringPropertyNames()) {
+            if (!property.endsWith(".public_key")) {
+                continue;
+            }
+            String name = property.substring(0, property.length() - ".public_key".length());
+            try {
+                users.put(name, new User(name, properties));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("SERVER: skipping user " + name + ", " + e);
+            }
+        }
+        return Collections.unmodifiableMap(users);
+    }
+
+    // Everything a handshake needs about one user, parsed up front
+    public static class User {
+        private final String name;
+        private final String company;
+        private final RSA.PublicKey publicKey;
+        private final Hash hash;
+
+        User(String name, Properties properties) throws IOException {
+            this.name = name;
+            this.company = properties.getProperty(name + ".company");
+            this.publicKey = new RSA.PublicKey(properties.getProperty(name + ".public_key").getBytes());
+            this.hash = Hash.load(properties, name + ".");
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getCompany() {
+            return this.company;
+        }
+
+        public RSA.PublicKey getPublicKey() {
+            return this.publicKey;
+        }
+
+        // Hash keeps no per-call state, so one instance is shared by all of the user's connections
+        public Hash getHash() {
+            return this.hash;
+        }
+    }
+}